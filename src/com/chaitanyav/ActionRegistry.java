@@ -0,0 +1,102 @@
+package com.chaitanyav;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The Actions of a Server or a Client, by tag and by the id of the tag in its TagTable.
+ * Actions can be set, replaced and removed while messages are being received. Lookups read
+ * an immutable snapshot without locking or allocating, changes copy the snapshot and are
+ * serialized among themselves. A removed tag keeps its id, so the other end can keep sending
+ * it and the messages are ignored until an Action is set for it again.
+ * @param <A> The Action type of the Server or the Client
+ * @author Chaitanya V
+ */
+public final class ActionRegistry<A> {
+    private final TagTable tags = new TagTable();
+    private volatile Snapshot snapshot = new Snapshot(new HashMap<>(), new Object[TagTable.FIRST_ID]);
+
+    /**
+     * @param tag
+     * @return The Action of the tag, null if it has none
+     */
+    @SuppressWarnings("unchecked")
+    public A get(String tag) {
+        return (A) snapshot.byTag.get(tag);
+    }
+
+    /**
+     * @param tagId An id of the TagTable of this registry
+     * @return The Action of the tag with the id, null if it has none
+     */
+    @SuppressWarnings("unchecked")
+    public A get(int tagId) {
+        Object[] byId = snapshot.byId;
+        return tagId > 0 && tagId < byId.length ? (A) byId[tagId] : null;
+    }
+
+    /**
+     * @param tag
+     * @param action
+     * @return false if the tag already has an Action, nothing is changed then
+     */
+    public synchronized boolean add(String tag, A action) {
+        if (snapshot.byTag.containsKey(tag)) return false;
+        put(tag, action);
+        return true;
+    }
+
+    /**
+     * Sets the Action of the tag, whether or not it has one.
+     * @param tag
+     * @param action
+     * @return The previous Action of the tag, null if it had none
+     */
+    public synchronized A replace(String tag, A action) {
+        A previous = get(tag);
+        put(tag, action);
+        return previous;
+    }
+
+    /**
+     * @param tag
+     * @return The removed Action, null if the tag had none
+     */
+    public synchronized A remove(String tag) {
+        A previous = get(tag);
+        if (previous == null) return null;
+        HashMap<String, Object> byTag = new HashMap<>(snapshot.byTag);
+        byTag.remove(tag);
+        Object[] byId = snapshot.byId.clone();
+        byId[tags.idOf(tag)] = null;
+        snapshot = new Snapshot(byTag, byId);
+        return previous;
+    }
+
+    /**
+     * @return The ids of the tags that have or had an Action
+     */
+    public TagTable getTags() {
+        return tags;
+    }
+
+    private void put(String tag, A action) {
+        int id = tags.register(tag);
+        HashMap<String, Object> byTag = new HashMap<>(snapshot.byTag);
+        byTag.put(tag, action);
+        Object[] byId = Arrays.copyOf(snapshot.byId, Math.max(snapshot.byId.length, id + 1));
+        byId[id] = action;
+        snapshot = new Snapshot(byTag, byId);
+    }
+
+    //immutable, both views are replaced together
+    private static final class Snapshot {
+        final HashMap<String, Object> byTag;
+        final Object[] byId;
+
+        Snapshot(HashMap<String, Object> byTag, Object[] byId) {
+            this.byTag = byTag;
+            this.byId = byId;
+        }
+    }
+}
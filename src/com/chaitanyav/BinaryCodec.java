@@ -0,0 +1,271 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default codec. Writes the tag and a small set of data types in a compact binary form
+ * without reflection or class descriptors.
+ * Supported data types are null, Boolean, Byte, Short, Character, Integer, Long, Float,
+ * Double, String, byte[], and List and Map objects made of these. Lists are decoded as
+ * ArrayList and maps as LinkedHashMap. Anything else fails with an IOException when sent,
+ * use SerializationCodec for other types.
+ * Tags the receiver has an id for are sent as that id, see TagTable.
+ * The codec keeps no state, one instance serves every connection.
+ * @author Chaitanya V
+ */
+public class BinaryCodec implements MessageCodec, MessageCodec.Encoder, MessageCodec.Decoder {
+    //type markers
+    private static final int NULL = 0, TRUE = 1, FALSE = 2, BYTE = 3, SHORT = 4, CHAR = 5, INT = 6,
+            LONG = 7, FLOAT = 8, DOUBLE = 9, STRING = 10, BYTES = 11, LIST = 12, MAP = 13;
+    //limits nesting of lists and maps so a peer can't overflow the stack of the reader
+    private static final int MAX_DEPTH = 64;
+
+    @Override
+    public Encoder newEncoder() {
+        return this;
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return this;
+    }
+
+    @Override
+    public boolean isStateless() {
+        return true;
+    }
+
+    @Override
+    public Encoder newEncoder(final TagTable peerTags) {
+        return (msg, out) -> encode(msg, out, peerTags.idOf(msg.getTag()));
+    }
+
+    @Override
+    public Decoder newDecoder(final TagTable localTags) {
+        return (in) -> decode(in, localTags);
+    }
+
+    @Override
+    public void encode(Message msg, OutputStream out) throws IOException {
+        encode(msg, out, 0);
+    }
+
+    private static void encode(Message msg, OutputStream out, int tagId) throws IOException {
+        //the tag id, or 0 followed by the tag
+        writeVarLong(out, tagId);
+        if (tagId == 0) writeString(out, msg.getTag());
+        //correlation id and reply flag in one varint, a single byte for messages that aren't calls
+        writeVarLong(out, (msg.getCorrelationId() << 1) | (msg.isReply() ? 1 : 0));
+        writeValue(out, msg.getData(), 0);
+    }
+
+    @Override
+    public Message decode(InputStream in) throws IOException {
+        return decode(in, null);
+    }
+
+    private static Message decode(InputStream in, TagTable localTags) throws IOException {
+        int tagId = (int) readVarLong(in);
+        String tag;
+        if (tagId == 0) {
+            tag = readString(in);
+            if (localTags != null) tagId = localTags.idOf(tag);
+        } else {
+            tag = localTags == null ? null : localTags.tagOf(tagId);
+            if (tag == null) throw new IOException("Unknown tag id " + tagId);
+        }
+        long call = readVarLong(in);
+        Message msg = new Message(tag, readValue(in, 0), call >>> 1, (call & 1) != 0);
+        msg.setTagId(tagId);
+        return msg;
+    }
+
+    private static void writeValue(OutputStream out, Object value, int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new IOException("Data nested too deep");
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof String) {
+            out.write(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.write(INT);
+            writeVarLong(out, zigzag((Integer) value));
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            writeVarLong(out, zigzag((Long) value));
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.write(DOUBLE);
+            writeFixed(out, Double.doubleToLongBits((Double) value), 8);
+        } else if (value instanceof Float) {
+            out.write(FLOAT);
+            writeFixed(out, Float.floatToIntBits((Float) value), 4);
+        } else if (value instanceof Byte) {
+            out.write(BYTE);
+            out.write((Byte) value);
+        } else if (value instanceof Short) {
+            out.write(SHORT);
+            writeFixed(out, (Short) value, 2);
+        } else if (value instanceof Character) {
+            out.write(CHAR);
+            writeFixed(out, (Character) value, 2);
+        } else if (value instanceof byte[]) {
+            byte[] b = (byte[]) value;
+            out.write(BYTES);
+            writeVarLong(out, b.length);
+            out.write(b);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.write(LIST);
+            writeVarLong(out, list.size());
+            for (Object o : list) {
+                writeValue(out, o, depth + 1);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.write(MAP);
+            writeVarLong(out, map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                writeValue(out, e.getKey(), depth + 1);
+                writeValue(out, e.getValue(), depth + 1);
+            }
+        } else {
+            throw new IOException("Type not supported by BinaryCodec: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(InputStream in, int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new IOException("Data nested too deep");
+        int type = readByte(in);
+        switch (type) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return (byte) readByte(in);
+            case SHORT:
+                return (short) readFixed(in, 2);
+            case CHAR:
+                return (char) readFixed(in, 2);
+            case INT:
+                return (int) unzigzag(readVarLong(in));
+            case LONG:
+                return unzigzag(readVarLong(in));
+            case FLOAT:
+                return Float.intBitsToFloat((int) readFixed(in, 4));
+            case DOUBLE:
+                return Double.longBitsToDouble(readFixed(in, 8));
+            case STRING:
+                return readString(in);
+            case BYTES: {
+                byte[] b = new byte[readLength(in)];
+                readFully(in, b);
+                return b;
+            }
+            case LIST: {
+                int size = readLength(in);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, depth + 1));
+                }
+                return list;
+            }
+            case MAP: {
+                int size = readLength(in);
+                LinkedHashMap<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(in, depth + 1), readValue(in, depth + 1));
+                }
+                return map;
+            }
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, b.length);
+        out.write(b);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        byte[] b = new byte[readLength(in)];
+        readFully(in, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    //a length or element count. every element takes at least one byte, so it can't exceed what is left of the frame
+    private static int readLength(InputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > in.available()) throw new IOException("Invalid length " + length);
+        return (int) length;
+    }
+
+    private static void writeFixed(OutputStream out, long v, int bytes) throws IOException {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (v >>> shift));
+        }
+    }
+
+    private static long readFixed(InputStream in, int bytes) throws IOException {
+        long v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v = (v << 8) | readByte(in);
+        }
+        return v;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        //the frame was read whole, so this is a malformed message rather than a closed connection
+        if (b < 0) throw new IOException("Truncated message");
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n < 0) throw new IOException("Truncated message");
+            off += n;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.chaitanyav;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct ByteBuffers in size classes of powers of two, from 256 bytes to 1 MB.
+ * Frames are encoded into them and the selector transport reads into them, so sending and
+ * receiving messages doesn't allocate a new array for every message and the socket is
+ * written and read without the JDK copying heap arrays into a direct buffer of its own.
+ * Each size class keeps at most maxBytesPerClass bytes of free buffers, more are left to the
+ * garbage collector. Larger buffers aren't pooled.
+ * With leak detection on, see setLeakDetection, every buffer remembers where it was acquired
+ * and a buffer that is garbage collected without having been released is logged with that
+ * stack trace. Meant for debugging, it costs a stack trace per acquire.
+ * @author Chaitanya V
+ */
+public final class BufferPool {
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES_PER_CLASS = 16 * 1024 * 1024;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_BYTES_PER_CLASS);
+    private static volatile boolean leakDetection = Boolean.getBoolean("com.chaitanyav.leakDetection");
+
+    private final Shelf[] shelves = new Shelf[CLASSES];
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    //the trackers of the buffers that are out, so they are reachable until the buffer is released
+    private final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * @param maxBytesPerClass The most bytes of free buffers kept in each size class
+     */
+    public BufferPool(long maxBytesPerClass) {
+        for (int i = 0; i < CLASSES; i++) {
+            shelves[i] = new Shelf((int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytesPerClass >> (MIN_SHIFT + i))));
+        }
+    }
+
+    /**
+     * @return The pool used by the Server and the Client
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Turns leak detection on or off for the buffers acquired from then on. Also turned on
+     * by the system property com.chaitanyav.leakDetection=true.
+     */
+    public static void setLeakDetection(boolean on) {
+        leakDetection = on;
+    }
+
+    public static boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * @param capacity The least capacity needed
+     * @return A cleared buffer with at least that capacity, with a reference count of 1
+     */
+    public PooledBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        PooledBuffer buffer = null;
+        if (sizeClass >= 0) {
+            Shelf shelf = shelves[sizeClass];
+            buffer = shelf.free.poll();
+            if (buffer != null) {
+                shelf.count.decrementAndGet();
+            } else {
+                allocated.increment();
+                buffer = new PooledBuffer(this, ByteBuffer.allocateDirect(MIN_SIZE << sizeClass), sizeClass);
+            }
+        } else {
+            allocated.increment();
+            buffer = new PooledBuffer(this, ByteBuffer.allocateDirect(capacity), -1);
+        }
+        buffer.acquired();
+        if (leakDetection) {
+            reportLeaks();
+            Tracker tracker = new Tracker(buffer, collected);
+            trackers.add(tracker);
+            buffer.tracker = tracker;
+        }
+        return buffer;
+    }
+
+    //called by PooledBuffer.release()
+    void recycle(PooledBuffer buffer) {
+        Tracker tracker = buffer.tracker;
+        if (tracker != null) {
+            buffer.tracker = null;
+            trackers.remove(tracker);
+            tracker.clear();
+        }
+        int sizeClass = buffer.sizeClass;
+        if (sizeClass < 0) return;
+        Shelf shelf = shelves[sizeClass];
+        if (shelf.count.incrementAndGet() > shelf.max) {
+            shelf.count.decrementAndGet();
+            return;
+        }
+        shelf.free.offer(buffer);
+    }
+
+    /**
+     * @return The number of buffers allocated because none was free
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * @return The number of buffers found garbage collected without having been released,
+     * only counted with leak detection on
+     */
+    public long getLeaks() {
+        reportLeaks();
+        return leaks.sum();
+    }
+
+    /**
+     * @return The bytes of the free buffers in the pool
+     */
+    public long getFreeBytes() {
+        long bytes = 0;
+        for (int i = 0; i < CLASSES; i++) {
+            bytes += (long) shelves[i].count.get() * (MIN_SIZE << i);
+        }
+        return bytes;
+    }
+
+    private void reportLeaks() {
+        Tracker tracker;
+        while ((tracker = (Tracker) collected.poll()) != null) {
+            if (!trackers.remove(tracker)) continue;
+            leaks.increment();
+            Log.warn("[POOL] A buffer was garbage collected without being released, acquired at {}", tracker.trace);
+        }
+    }
+
+    //-1 if too large to be pooled
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_SIZE) return -1;
+        if (capacity <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    //the free buffers of one size class
+    private static final class Shelf {
+        final ConcurrentLinkedQueue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+        final int max;
+
+        Shelf(int max) {
+            this.max = max;
+        }
+    }
+
+    static final class Tracker extends WeakReference<PooledBuffer> {
+        final Trace trace = new Trace();
+
+        Tracker(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+        }
+    }
+
+    //prints the stack of the acquire when logged
+    private static final class Trace extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            StackTraceElement[] stack = getStackTrace();
+            //skip the Tracker and acquire() itself
+            for (int i = 2; i < stack.length; i++) {
+                text.append("\n\tat ").append(stack[i]);
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the frames of a connection with Deflater, see Server.setCompression and
+ * Client.setCompression. Only frames of at least the threshold are compressed, and only if
+ * that makes them smaller, so small messages such as heartbeats cost nothing. Every frame is
+ * compressed on its own, so a frame encoded once can be sent to many clients, and a preset
+ * dictionary of byte sequences common in the messages makes up for the lost context between
+ * frames. Both ends must use the same dictionary to make use of it, otherwise frames are
+ * compressed without it. Deflaters and Inflaters are pooled and shared by every connection
+ * using this Compression, so native memory grows with the number of threads compressing at
+ * the same time rather than with the number of connections.
+ * @author Chaitanya V
+ */
+public final class Compression {
+    public static final int DEFAULT_THRESHOLD = 1024;
+    //the length of the uncompressed frame body, written before the compressed data
+    private static final int LENGTH_BYTES = 4;
+    //deflate can't make data smaller than about a thousandth, a larger claimed size is a lie
+    private static final int MAX_RATIO = 1032;
+    //the output starts at this, or the claimed size if smaller, and doubles while inflating
+    private static final int INITIAL_OUTPUT = 4096;
+
+    private final int threshold;
+    private final int level;
+    private final byte[] dictionary;
+    private final long dictionaryId;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private volatile Compression withoutDictionary;
+
+    public Compression() {
+        this(DEFAULT_THRESHOLD, Deflater.BEST_SPEED, null);
+    }
+
+    /**
+     * @param threshold Frames smaller than this many bytes are sent as they are
+     * @param level A Deflater level, BEST_SPEED by default
+     * @param dictionary A preset dictionary, null for none. The peer needs the same one to use it.
+     */
+    public Compression(int threshold, int level, byte[] dictionary) {
+        this.threshold = Math.max(threshold, 1);
+        this.level = level;
+        this.dictionary = dictionary == null ? null : dictionary.clone();
+        if (dictionary == null) {
+            dictionaryId = 0;
+        } else {
+            Adler32 adler = new Adler32();
+            adler.update(dictionary);
+            //the same checksum the compressed data carries to name its dictionary
+            dictionaryId = adler.getValue();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return The checksum identifying the dictionary, 0 without one
+     */
+    public long getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * @param peerDictionaryId The dictionary id the other end announced
+     * @return This compression if the other end has the same dictionary, otherwise the same
+     * compression without a dictionary
+     */
+    public Compression agree(long peerDictionaryId) {
+        if (peerDictionaryId == dictionaryId) return this;
+        Compression plain = withoutDictionary;
+        if (plain == null) withoutDictionary = plain = new Compression(threshold, level, null);
+        return plain;
+    }
+
+    /**
+     * @param frame A frame with its header
+     * @param length The length of its body
+     * @return The compressed frame with room for the header, or null if it isn't worth compressing
+     */
+    byte[] compress(byte[] frame, int length) {
+        if (length < threshold) return null;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(frame, FrameCodec.HEADER_LENGTH, length);
+            deflater.finish();
+            //anything not smaller than the frame itself is of no use
+            byte[] out = new byte[FrameCodec.HEADER_LENGTH + length];
+            int pos = FrameCodec.HEADER_LENGTH + LENGTH_BYTES;
+            while (!deflater.finished()) {
+                if (pos == out.length) return null;
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+            putInt(out, FrameCodec.HEADER_LENGTH, length);
+            return Arrays.copyOf(out, pos);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    /**
+     * @return The uncompressed frame body. Memory is only taken as the data inflates, not for
+     * the size the frame claims.
+     */
+    byte[] decompress(byte[] body, int offset, int length) throws IOException {
+        if (length < LENGTH_BYTES) throw new IOException("Truncated compressed frame");
+        int size = getInt(body, offset);
+        if (size < 0 || size > FrameCodec.MAX_FRAME_LENGTH || size > (long) length * MAX_RATIO) {
+            throw new IOException("Invalid frame length " + size);
+        }
+        byte[] out = new byte[Math.min(size, INITIAL_OUTPUT)];
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater();
+        try {
+            inflater.setInput(body, offset + LENGTH_BYTES, length - LENGTH_BYTES);
+            int pos = 0;
+            while (pos < size) {
+                if (pos == out.length) out = Arrays.copyOf(out, (int) Math.min(size, out.length * 2L));
+                int n = inflater.inflate(out, pos, out.length - pos);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null || inflater.getAdler() != dictionaryId) {
+                            throw new IOException("Frame compressed with an unknown dictionary");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Truncated compressed frame");
+                    }
+                }
+                pos += n;
+            }
+            return out;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+}
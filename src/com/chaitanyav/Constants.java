@@ -7,6 +7,18 @@ package com.chaitanyav;
 public interface Constants {
     public static final String PING="_PING";
     public static final String PONG="_PONG";
+    //data is the name of the topic
+    public static final String SUBSCRIBE="_SUB";
+    public static final String UNSUBSCRIBE="_UNSUB";
+    //session handshake. the client sends RESUME with its last token or null, the server answers with SESSION and the token
+    public static final String RESUME="_RESUME";
+    public static final String SESSION="_SESSION";
+    //first message of both ends, data is the list of tags with ids, see TagTable
+    public static final String TAGS="_TAGS";
+    public static final String COMPRESS="_COMPRESS";
+    //announces a stream, data is the list of its id, tag, name and length, see OutgoingStream
+    public static final String STREAM="_STREAM";
     public static final int PING_INTERVAL=10000;
     public static final int PONG_TIMEOUT=500;    
+    public static final int CALL_TIMEOUT=30000;    
 }
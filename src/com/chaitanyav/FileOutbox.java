@@ -0,0 +1,364 @@
+package com.chaitanyav;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An Outbox that keeps messages on disk, so they survive a restart of the application.
+ * Every key has a directory of append-only segment files. The segment being written is
+ * memory-mapped and messages are appended to it as frames, the same format that is sent
+ * on the wire. The first segment of a key is small and the next ones double up to the
+ * segment size, so keys with few messages take little space. When the segments of a key
+ * exceed maxBytesPerKey the oldest segment is deleted, and beyond maxTotalBytes for all keys
+ * together, counting the keys an earlier run left in the directory, new messages are dropped.
+ * Keys left by an earlier run that are never used again are deleted by removeStale.
+ * Messages are encoded with the given codec, which must be able to encode everything that
+ * is stored.
+ * @author Chaitanya V
+ */
+public class FileOutbox implements Outbox {
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES_PER_KEY = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 1024L * 1024 * 1024;
+    //the size of the first segment of a key
+    private static final int MIN_SEGMENT_BYTES = 4096;
+    private static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private final MessageCodec codec;
+    private final int segmentBytes;
+    private final long maxBytesPerKey;
+    private final long maxTotalBytes;
+    //the stored bytes of the keys in logs and in earlier
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ConcurrentHashMap<String, Log> logs = new ConcurrentHashMap<>();
+    //the keys found on disk when the outbox was created that weren't used since
+    private final ConcurrentHashMap<String, Earlier> earlier = new ConcurrentHashMap<>();
+
+    public FileOutbox(File directory) throws IOException {
+        this(directory, new BinaryCodec(), DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_BYTES_PER_KEY);
+    }
+
+    /**
+     * @param directory Where the segments are kept. Messages stored by an earlier run are found again.
+     * @param codec Encodes the stored messages
+     * @param segmentBytes The size of a segment file, larger messages get a segment of their own
+     * @param maxBytesPerKey The oldest segments of a key are deleted beyond this size
+     * @throws IOException If the directory can't be created
+     */
+    public FileOutbox(File directory, MessageCodec codec, int segmentBytes, long maxBytesPerKey) throws IOException {
+        this(directory, codec, segmentBytes, maxBytesPerKey, DEFAULT_MAX_TOTAL_BYTES);
+    }
+
+    /**
+     * Same as the other constructor, with a limit for all keys together.
+     * @param maxTotalBytes Messages are dropped while the keys together have this many bytes,
+     * including the keys found in the directory
+     */
+    public FileOutbox(File directory, MessageCodec codec, int segmentBytes, long maxBytesPerKey, long maxTotalBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentBytes = Math.max(segmentBytes, MIN_SEGMENT_BYTES);
+        this.maxBytesPerKey = maxBytesPerKey;
+        this.maxTotalBytes = maxTotalBytes;
+        File[] dirs = directory.listFiles(File::isDirectory);
+        if (dirs == null) return;
+        for (File dir : dirs) {
+            String key = fromFileName(dir.getName());
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+            if (key == null || files == null) continue;
+            long bytes = 0;
+            long modified = dir.lastModified();
+            for (File file : files) {
+                bytes += file.length();
+                modified = Math.max(modified, file.lastModified());
+            }
+            earlier.put(key, new Earlier(bytes, modified));
+            totalBytes.addAndGet(bytes);
+        }
+    }
+
+    @Override
+    public void store(String key, Message msg) {
+        byte[] frame;
+        try {
+            //a codec of its own for every message, so messages decode independently of each other
+            frame = new FrameCodec(codec).encode(msg);
+        } catch (IOException ex) {
+            Logger.getLogger(FileOutbox.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        if (totalBytes.get() + frame.length > maxTotalBytes) {
+            Logger.getLogger(FileOutbox.class.getName()).log(Level.WARNING, "Outbox full, message dropped for {0}", key);
+            return;
+        }
+        Log log = logs.computeIfAbsent(key, this::newLog);
+        synchronized (log) {
+            try {
+                log.append(frame);
+            } catch (IOException ex) {
+                Logger.getLogger(FileOutbox.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public List<Message> drain(String key) {
+        Log log = existing(key);
+        if (log == null) return Collections.emptyList();
+        synchronized (log) {
+            try {
+                return log.drain();
+            } catch (IOException ex) {
+                Logger.getLogger(FileOutbox.class.getName()).log(Level.SEVERE, null, ex);
+                return Collections.emptyList();
+            } finally {
+                //an empty key takes no memory. a store racing with this goes to disk and is found again
+                logs.remove(key, log);
+            }
+        }
+    }
+
+    @Override
+    public int size(String key) {
+        Log log = existing(key);
+        if (log == null) return 0;
+        synchronized (log) {
+            return log.count;
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        Log log = existing(key);
+        if (log == null) return;
+        synchronized (log) {
+            log.clear();
+            logs.remove(key, log);
+        }
+    }
+
+    /**
+     * Deletes the keys found in the directory when this outbox was created that haven't been
+     * stored to or drained since, and were last written age_ms ago or longer.
+     * @param age_ms
+     */
+    @Override
+    public void removeStale(long age_ms) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Earlier> entry : earlier.entrySet()) {
+            if (now - entry.getValue().modified < age_ms) continue;
+            //in computeIfAbsent, so the key can't be loaded while it is deleted
+            logs.computeIfAbsent(entry.getKey(), key -> {
+                Earlier stale = earlier.remove(key);
+                if (stale == null) return null;
+                totalBytes.addAndGet(-stale.bytes);
+                File dir = new File(directory, toFileName(key));
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                dir.delete();
+                return null;
+            });
+        }
+    }
+
+    private Log newLog(String key) {
+        //the log counts the bytes of a key from an earlier run itself
+        Earlier stale = earlier.remove(key);
+        if (stale != null) totalBytes.addAndGet(-stale.bytes);
+        return new Log(new File(directory, toFileName(key)));
+    }
+
+    //the log of a key with messages, in memory or stored by an earlier run, null for other keys
+    private Log existing(String key) {
+        Log log = logs.get(key);
+        if (log != null || !new File(directory, toFileName(key)).isDirectory()) return log;
+        return logs.computeIfAbsent(key, this::newLog);
+    }
+
+    //hex of the key, so any key is a valid file name
+    private static String toFileName(String key) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    //the key of a directory, null if it isn't the name of one
+    private static String fromFileName(String name) {
+        if (name.length() % 2 != 0) return null;
+        byte[] key = new byte[name.length() / 2];
+        for (int i = 0; i < key.length; i++) {
+            int high = Character.digit(name.charAt(2 * i), 16);
+            int low = Character.digit(name.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            key[i] = (byte) (high << 4 | low);
+        }
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    //a key left by an earlier run
+    private static final class Earlier {
+        final long bytes;
+        final long modified;
+
+        Earlier(long bytes, long modified) {
+            this.bytes = bytes;
+            this.modified = modified;
+        }
+    }
+
+    //the segments of one key, guarded by itself
+    private final class Log {
+        private final File dir;
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        private long nextSegment = 0;
+        private long bytes = 0;
+        private int count = 0;
+        //the size of the next segment, doubles up to segmentBytes
+        private int nextSegmentBytes = MIN_SEGMENT_BYTES;
+        //the segment being appended to
+        private MappedByteBuffer tail = null;
+
+        Log(File dir) {
+            this.dir = dir;
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+            if (files == null) return;
+            //segments stored by an earlier run, oldest first
+            Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    //before the scan, so a segment that can't be read isn't written over
+                    nextSegment = Math.max(nextSegment, Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())) + 1);
+                } catch (NumberFormatException ex) {
+                    Logger.getLogger(FileOutbox.class.getName()).log(Level.SEVERE, null, ex);
+                    continue;
+                }
+                try {
+                    Segment segment = new Segment(file);
+                    scan(Files.readAllBytes(file.toPath()), segment, null);
+                    add(segment);
+                } catch (IOException ex) {
+                    //its messages can't be told apart, deleted so the key can be removed
+                    Logger.getLogger(FileOutbox.class.getName()).log(Level.SEVERE, "Can't read " + file + ", deleted", ex);
+                    file.delete();
+                }
+            }
+        }
+
+        void append(byte[] frame) throws IOException {
+            if (tail == null || tail.remaining() < frame.length) newSegment(frame.length);
+            tail.put(frame);
+            Segment segment = segments.peekLast();
+            segment.bytes += frame.length;
+            segment.count++;
+            bytes += frame.length;
+            totalBytes.addAndGet(frame.length);
+            count++;
+            //evict whole segments, never the one being appended to
+            while (bytes > maxBytesPerKey && segments.size() > 1) {
+                Segment oldest = segments.poll();
+                bytes -= oldest.bytes;
+                totalBytes.addAndGet(-oldest.bytes);
+                count -= oldest.count;
+                Files.deleteIfExists(oldest.file.toPath());
+            }
+        }
+
+        List<Message> drain() throws IOException {
+            ArrayList<Message> messages = new ArrayList<>(count);
+            for (Segment segment : segments) {
+                scan(Files.readAllBytes(segment.file.toPath()), null, messages);
+            }
+            clear();
+            return messages;
+        }
+
+        void clear() {
+            tail = null;
+            for (Segment segment : segments) {
+                if (!segment.file.delete()) {
+                    Logger.getLogger(FileOutbox.class.getName()).log(Level.WARNING, "Can''t delete {0}", segment.file);
+                }
+            }
+            segments.clear();
+            dir.delete();
+            totalBytes.addAndGet(-bytes);
+            bytes = 0;
+            count = 0;
+        }
+
+        private void add(Segment segment) {
+            segments.add(segment);
+            bytes += segment.bytes;
+            totalBytes.addAndGet(segment.bytes);
+            count += segment.count;
+        }
+
+        private void newSegment(int minBytes) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+            File file = new File(dir, String.format("%016d", nextSegment++) + SUFFIX);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                //the mapping stays valid after the file is closed
+                tail = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(nextSegmentBytes, minBytes));
+            }
+            nextSegmentBytes = Math.min(nextSegmentBytes * 2, segmentBytes);
+            add(new Segment(file));
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        //the written part of the segment
+        int bytes = 0;
+        int count = 0;
+
+        Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    //the length of the frame at pos, 0 where the written part of the segment ends
+    private static int frameLength(byte[] data, int pos) throws IOException {
+        if (pos + FrameCodec.HEADER_LENGTH > data.length) return 0;
+        int length = FrameCodec.getLength(data, pos);
+        if (pos + FrameCodec.HEADER_LENGTH + length > data.length) throw new IOException("Truncated segment");
+        return length;
+    }
+
+    //measures the written part of a segment into sizes and decodes its frames into messages, each if not null
+    private void scan(byte[] data, Segment sizes, List<Message> messages) throws IOException {
+        int pos = 0;
+        for (int length; (length = frameLength(data, pos)) > 0; pos += FrameCodec.HEADER_LENGTH + length) {
+            if (sizes != null) sizes.count++;
+            if (messages == null) continue;
+            try {
+                messages.add(new FrameCodec(codec).decode(data, pos + FrameCodec.HEADER_LENGTH, length));
+            } catch (ClassNotFoundException ex) {
+                Logger.getLogger(FileOutbox.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (sizes != null) sizes.bytes = pos;
+    }
+}
@@ -0,0 +1,58 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a received stream to a file, which is closed at the end of the stream and deleted
+ * if the stream is aborted. For example, keeping only the file name of the name the peer sent
+ * so the file can't be written outside the directory
+ * server.setStreamHandler("upload",
+ *         (hnd, name, length) -> new FileReceiver(dir.resolve(Paths.get(name).getFileName())))
+ * @author Chaitanya V
+ */
+public class FileReceiver implements StreamReceiver {
+    private final Path path;
+    private final FileChannel channel;
+
+    /**
+     * Creates the file, or truncates it if it exists.
+     */
+    public FileReceiver(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public final Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void onChunk(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+    }
+
+    @Override
+    public void onEnd() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public void onAbort(IOException cause) {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            Logger.getLogger(FileReceiver.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.chaitanyav;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts Message objects to and from length prefixed frames.
+ * Every frame on the wire is a 4 byte big-endian length followed by that many
+ * bytes written by the MessageCodec of the connection. The highest bit of the length is
+ * set for frames whose bytes are compressed, see Compression. The next bit marks chunk
+ * frames, which carry raw bytes of a stream instead of a message, see OutgoingStream. Framing lets a reader find
+ * message boundaries without blocking, which the selector based transport of the Server needs.
+ * Frames are encoded into buffers of the BufferPool and decoded straight from the buffer
+ * they were read into, so neither allocates an array per message.
+ * One FrameCodec must be used per connection.
+ * Encoding is not thread safe, callers must serialize calls to encode and write
+ * the frames in the same order they were encoded.
+ * @author Chaitanya V
+ */
+public final class FrameCodec {
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    //flags in the header of compressed frames and of chunk frames
+    private static final int COMPRESSED = 0x80000000, CHUNK = 0x40000000;
+    //a chunk frame body starts with the id of its stream and the chunk flags
+    public static final int CHUNK_HEADER_LENGTH = HEADER_LENGTH + 8 + 1;
+    //most messages fit, larger ones move to a larger buffer while being encoded
+    private static final int INITIAL_FRAME_CAPACITY = BufferPool.MIN_SIZE;
+
+    //encoding side
+    private final BufferPool pool = BufferPool.getDefault();
+    private final BufferOutputStream bytesOut = new BufferOutputStream(pool);
+    private final MessageCodec.Encoder encoder;
+    //set once both ends agreed to compress
+    private volatile Compression compression = null;
+
+    //decoding side
+    private final FrameInputStream bytesIn = new FrameInputStream();
+    private final MessageCodec.Decoder decoder;
+    //the compression of this end, null for none
+    private volatile Compression decompression = null;
+
+    public FrameCodec(MessageCodec codec) {
+        encoder = codec.newEncoder();
+        decoder = codec.newDecoder();
+    }
+
+    /**
+     * A FrameCodec for a connection that uses tag ids, see TagTable.
+     * @param codec
+     * @param localTags The tags of this end, used to resolve received tag ids
+     * @param peerTags The tags of the other end, used to send tag ids
+     */
+    public FrameCodec(MessageCodec codec, TagTable localTags, TagTable peerTags) {
+        encoder = codec.newEncoder(peerTags);
+        decoder = codec.newDecoder(localTags);
+    }
+
+    /**
+     * Encodes the message and returns the complete frame, including the length header.
+     * @param msg
+     * @return The frame to be written to the connection
+     * @throws IOException If the message could not be encoded. The codec stays usable.
+     */
+    public byte[] encode(Message msg) throws IOException {
+        PooledBuffer frame = encodeBuffer(msg);
+        try {
+            byte[] bytes = new byte[frame.buffer().remaining()];
+            frame.buffer().get(bytes);
+            return bytes;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Same as encode, into a buffer of the BufferPool. Used by the transports, so sending a
+     * message doesn't allocate an array for its frame.
+     * @param msg
+     * @return The frame, between the position and the limit of the buffer. Must be released
+     * once it has been written.
+     * @throws IOException If the message could not be encoded. The codec stays usable.
+     */
+    public PooledBuffer encodeBuffer(Message msg) throws IOException {
+        bytesOut.start();
+        try {
+            encoder.encode(msg, bytesOut);
+        } catch (IOException | RuntimeException ex) {
+            bytesOut.abort();
+            throw ex;
+        }
+        PooledBuffer frame = bytesOut.finish();
+        ByteBuffer b = frame.buffer();
+        int length = b.position() - HEADER_LENGTH;
+        b.flip();
+        Compression c = compression;
+        if (c != null && length >= c.getThreshold()) {
+            //Deflater only takes arrays before Java 11
+            byte[] plain = new byte[HEADER_LENGTH + length];
+            b.get(plain);
+            b.rewind();
+            byte[] compressed = c.compress(plain, length);
+            if (compressed != null) {
+                putLength(compressed, 0, (compressed.length - HEADER_LENGTH) | COMPRESSED);
+                frame.release();
+                frame = pool.acquire(compressed.length);
+                frame.buffer().put(compressed).flip();
+                return frame;
+            }
+        }
+        b.putInt(0, length);
+        return frame;
+    }
+
+    /**
+     * Compresses the frames encoded from now on that are worth it.
+     * @param compression The compression agreed with the other end, null to stop compressing
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets what received compressed frames are decompressed with. Compressed frames are only
+     * accepted once setCompression was called too, that is when both ends agreed to compress.
+     * @param compression The compression of this end, null for none
+     */
+    public void setDecompression(Compression compression) {
+        this.decompression = compression;
+    }
+
+    /**
+     * Decodes the Message contained in a frame body.
+     * Frames must be decoded in the order they were received.
+     * @param body
+     * @param offset
+     * @param length
+     * @return The decoded message
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public Message decode(byte[] body, int offset, int length) throws IOException, ClassNotFoundException {
+        return decode(ByteBuffer.wrap(body), offset, length);
+    }
+
+    /**
+     * Decodes the Message contained in a frame body, without copying it out of the buffer.
+     * The position and the limit of the buffer are left as they are.
+     * @param body
+     * @param offset The index of the body in the buffer
+     * @param length
+     * @return The decoded message
+     */
+    public Message decode(ByteBuffer body, int offset, int length) throws IOException, ClassNotFoundException {
+        bytesIn.feed(body, offset, length);
+        return decoder.decode(bytesIn);
+    }
+
+    //a peer that compresses without having agreed to is broken or hostile, the frame isn't even inflated
+    private void checkCompressed() throws ProtocolException {
+        if (compression == null || decompression == null) throw new ProtocolException("Compressed frame without agreed compression");
+    }
+
+    /**
+     * Decodes the Message contained in a frame body that may be compressed.
+     * @param compressed As isCompressed() says of the frame header
+     * @throws ProtocolException If the frame is compressed but compression wasn't agreed
+     */
+    public Message decode(byte[] body, int offset, int length, boolean compressed) throws IOException, ClassNotFoundException {
+        if (!compressed) return decode(body, offset, length);
+        checkCompressed();
+        byte[] plain = decompression.decompress(body, offset, length);
+        return decode(plain, 0, plain.length);
+    }
+
+    /**
+     * Decodes the Message contained in a frame body that may be compressed.
+     * @param compressed As isCompressed() says of the frame header
+     */
+    public Message decode(ByteBuffer body, int offset, int length, boolean compressed) throws IOException, ClassNotFoundException {
+        if (!compressed) return decode(body, offset, length);
+        checkCompressed();
+        if (body.hasArray()) return decode(body.array(), body.arrayOffset() + offset, length, true);
+        //Inflater only takes arrays before Java 11
+        byte[] packed = new byte[length];
+        ByteBuffer view = body.duplicate();
+        view.limit(offset + length).position(offset);
+        view.get(packed);
+        return decode(packed, 0, length, true);
+    }
+
+    /**
+     * Reads one frame body from a blocking stream of uncompressed frames.
+     * @param in
+     * @return The frame body, without the length header
+     * @throws IOException Also for a compressed frame, use readHeader and readBody for those
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int header = readHeader(in);
+        if (isCompressed(header)) throw new IOException("Compressed frame");
+        return readBody(in, header);
+    }
+
+    /**
+     * Reads the header of the next frame from a blocking stream.
+     * @return The header, see lengthOf and isCompressed
+     */
+    public static int readHeader(DataInputStream in) throws IOException {
+        int header = in.readInt();
+        checkLength(lengthOf(header));
+        return header;
+    }
+
+    /**
+     * Reads the body of the frame whose header was just read.
+     */
+    public static byte[] readBody(DataInputStream in, int header) throws IOException {
+        byte[] body = new byte[lengthOf(header)];
+        in.readFully(body);
+        return body;
+    }
+
+    public static int getLength(byte[] b, int offset) throws IOException {
+        int length = lengthOf(getHeader(b, offset));
+        checkLength(length);
+        return length;
+    }
+
+    public static int getLength(ByteBuffer b, int offset) throws IOException {
+        int length = lengthOf(b.getInt(offset));
+        checkLength(length);
+        return length;
+    }
+
+    public static boolean isCompressed(byte[] b, int offset) {
+        return isCompressed(getHeader(b, offset));
+    }
+
+    public static boolean isCompressed(ByteBuffer b, int offset) {
+        return isCompressed(b.getInt(offset));
+    }
+
+    public static boolean isChunk(byte[] b, int offset) {
+        return isChunk(getHeader(b, offset));
+    }
+
+    public static boolean isChunk(ByteBuffer b, int offset) {
+        return isChunk(b.getInt(offset));
+    }
+
+    public static int lengthOf(int header) {
+        return header & ~(COMPRESSED | CHUNK);
+    }
+
+    public static boolean isChunk(int header) {
+        return (header & CHUNK) != 0;
+    }
+
+    /**
+     * Writes the header of a chunk frame, which is followed by dataLength bytes of the stream.
+     * @param b At least CHUNK_HEADER_LENGTH bytes, written from index 0 whatever its position
+     */
+    public static void putChunkHeader(ByteBuffer b, long streamId, int dataLength, int flags) {
+        b.putInt(0, (CHUNK_HEADER_LENGTH - HEADER_LENGTH + dataLength) | CHUNK);
+        b.putLong(HEADER_LENGTH, streamId);
+        b.put(HEADER_LENGTH + 8, (byte) flags);
+    }
+
+    public static boolean isCompressed(int header) {
+        return (header & COMPRESSED) != 0;
+    }
+
+    private static int getHeader(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private static void putLength(byte[] b, int offset, int length) {
+        b[offset] = (byte) (length >>> 24);
+        b[offset + 1] = (byte) (length >>> 16);
+        b[offset + 2] = (byte) (length >>> 8);
+        b[offset + 3] = (byte) length;
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+
+    //writes the frame being encoded into a pooled buffer, moving to a larger one when it fills up.
+    //beyond the largest size class of the pool buffers aren't pooled, so the frame grows on the
+    //heap instead and is copied once into a direct buffer of its exact size at the end
+    private static final class BufferOutputStream extends OutputStream {
+        private final BufferPool pool;
+        //null while the frame is on the heap
+        private PooledBuffer frame;
+        private ByteBuffer buf;
+
+        BufferOutputStream(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        //leaves room for the header
+        void start() {
+            frame = pool.acquire(INITIAL_FRAME_CAPACITY);
+            buf = frame.buffer();
+            buf.position(HEADER_LENGTH);
+        }
+
+        PooledBuffer finish() {
+            PooledBuffer done = frame;
+            if (done == null) {
+                done = pool.acquire(buf.position());
+                buf.flip();
+                done.buffer().put(buf);
+            }
+            frame = null;
+            buf = null;
+            return done;
+        }
+
+        void abort() {
+            if (frame != null) frame.release();
+            frame = null;
+            buf = null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buf.hasRemaining()) grow(1);
+            buf.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buf.remaining() < len) grow(len);
+            buf.put(b, off, len);
+        }
+
+        private void grow(int needed) throws IOException {
+            long size = (long) buf.position() + needed;
+            checkLength((int) Math.min(size - HEADER_LENGTH, Integer.MAX_VALUE));
+            int capacity = (int) Math.min(Math.max(size, 2L * buf.capacity()), HEADER_LENGTH + MAX_FRAME_LENGTH);
+            PooledBuffer bigger = capacity <= BufferPool.MAX_SIZE ? pool.acquire(capacity) : null;
+            ByteBuffer next = bigger != null ? bigger.buffer() : ByteBuffer.allocate(capacity);
+            buf.flip();
+            next.put(buf);
+            if (frame != null) frame.release();
+            frame = bigger;
+            buf = next;
+        }
+    }
+
+    //exposes the current frame body and reports end of stream at its end
+    private static final class FrameInputStream extends InputStream {
+        //a view of the buffer the frames are read from, so reading doesn't move its position
+        private ByteBuffer source, view;
+
+        void feed(ByteBuffer b, int offset, int length) {
+            if (b != source) {
+                source = b;
+                view = b.duplicate();
+            }
+            view.clear();
+            view.limit(offset + length).position(offset);
+        }
+
+        @Override
+        public int read() {
+            return view.hasRemaining() ? view.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!view.hasRemaining()) return -1;
+            int n = Math.min(len, view.remaining());
+            view.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return view.remaining();
+        }
+    }
+}
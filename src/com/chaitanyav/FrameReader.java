@@ -0,0 +1,83 @@
+package com.chaitanyav;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the frames of a blocking connection through one buffer that is reused for every
+ * frame, so a frame costs no allocation and several small frames arrive with one read of
+ * the socket. The buffer grows for a large frame, and shrinks again after frames larger
+ * than MAX_RETAINED_SIZE so a single huge message doesn't keep its memory.
+ * A blocking socket can only be read into arrays, so the buffer is on the heap.
+ * @author Chaitanya V
+ */
+public final class FrameReader {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    //enough for the chunks of a stream, see OutgoingStream
+    public static final int MAX_RETAINED_SIZE = 128 * 1024;
+
+    private final InputStream in;
+    private byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(buf);
+    //unread bytes are between pos and limit
+    private int pos = 0, limit = 0;
+    private int header, bodyOffset;
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Blocks until the next frame has been read.
+     * @return The header of the frame, see FrameCodec.lengthOf, isCompressed and isChunk
+     * @throws EOFException If the connection was closed
+     */
+    public int next() throws IOException {
+        fill(FrameCodec.HEADER_LENGTH);
+        header = view.getInt(pos);
+        int length = FrameCodec.lengthOf(header);
+        FrameCodec.checkLength(length);
+        fill(FrameCodec.HEADER_LENGTH + length);
+        bodyOffset = pos + FrameCodec.HEADER_LENGTH;
+        pos = bodyOffset + length;
+        return header;
+    }
+
+    /**
+     * @return The buffer holding the body of the frame, valid until the next call to next()
+     */
+    public ByteBuffer buffer() {
+        return view;
+    }
+
+    public int bodyOffset() {
+        return bodyOffset;
+    }
+
+    public int bodyLength() {
+        return FrameCodec.lengthOf(header);
+    }
+
+    //reads until at least needed bytes are unread
+    private void fill(int needed) throws IOException {
+        if (limit - pos >= needed) return;
+        int unread = limit - pos;
+        if (needed > buf.length || (buf.length > MAX_RETAINED_SIZE && needed <= DEFAULT_BUFFER_SIZE)) {
+            byte[] resized = new byte[Math.max(needed, DEFAULT_BUFFER_SIZE)];
+            System.arraycopy(buf, pos, resized, 0, unread);
+            buf = resized;
+            view = ByteBuffer.wrap(buf);
+        } else {
+            System.arraycopy(buf, pos, buf, 0, unread);
+        }
+        pos = 0;
+        limit = unread;
+        while (limit < needed) {
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) throw new EOFException();
+            limit += n;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+
+/**
+ * The ping/pong check of one connection, driven by a shared TimerWheel instead of a thread
+ * of its own. The connection calls touch() for every message it receives. When nothing has
+ * been received for pingInterval a PING is sent, and if nothing arrives within pongTimeout
+ * after that the connection is reported dead.
+ * @author Chaitanya V
+ */
+public final class Heartbeat implements Runnable {
+
+    /**
+     * Implemented by the connection being checked. Both methods are called on the thread of
+     * the TimerWheel and must not block.
+     */
+    public interface Peer {
+        void sendPing() throws IOException;
+
+        /**
+         * Nothing was received in time after a PING, or the PING could not be sent.
+         */
+        void pongTimedOut();
+    }
+
+    private final TimerWheel timer;
+    private final long pingIntervalNanos;
+    private final long pongTimeoutNanos;
+    private final Peer peer;
+
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean stopped = false;
+    private volatile TimerWheel.Timeout timeout;
+    //only touched by the timer thread
+    private boolean pingOutstanding = false;
+    private long pingSentAt;
+
+    public Heartbeat(TimerWheel timer, long pingInterval_ms, long pongTimeout_ms, Peer peer) {
+        this.timer = timer;
+        this.pingIntervalNanos = pingInterval_ms * 1000000L;
+        this.pongTimeoutNanos = pongTimeout_ms * 1000000L;
+        this.peer = peer;
+    }
+
+    public void start() {
+        touch();
+        schedule(pingIntervalNanos);
+    }
+
+    /**
+     * Records that something was received on the connection.
+     */
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    public void stop() {
+        stopped = true;
+        TimerWheel.Timeout t = timeout;
+        if (t != null) t.cancel();
+    }
+
+    @Override
+    public void run() {
+        if (stopped) return;
+        long now = System.nanoTime();
+        long last = lastActivity;
+        if (pingOutstanding) {
+            if (last - pingSentAt <= 0) {
+                peer.pongTimedOut();
+                return;
+            }
+            pingOutstanding = false;
+        }
+        long idle = now - last;
+        if (idle < pingIntervalNanos) {
+            schedule(pingIntervalNanos - idle);
+            return;
+        }
+        pingOutstanding = true;
+        pingSentAt = now;
+        try {
+            peer.sendPing();
+        } catch (IOException ex) {
+            peer.pongTimedOut();
+            return;
+        }
+        schedule(pongTimeoutNanos);
+    }
+
+    private void schedule(long delayNanos) {
+        if (stopped) return;
+        //round up so the check never runs before the deadline
+        timeout = timer.schedule(this, (delayNanos + 999999) / 1000000);
+    }
+}
@@ -0,0 +1,88 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The streams being received on one connection, see OutgoingStream for the sending end.
+ * Fed by the thread reading the connection, or by the sequential executor of the client
+ * with the selector transport of the server, one chunk at a time in order.
+ * @author Chaitanya V
+ */
+public final class IncomingStreams {
+    //chunk frame body: stream id, flags, data
+    private static final int PREFIX = FrameCodec.CHUNK_HEADER_LENGTH - FrameCodec.HEADER_LENGTH;
+
+    private final ConcurrentHashMap<Long, StreamReceiver> receivers = new ConcurrentHashMap<>();
+
+    /**
+     * Handles a received STREAM message. Streams without a handler for their tag are ignored.
+     * @param peer The end that sent it
+     * @param data The data of the message
+     * @param handlers The handlers of this end by tag
+     */
+    public <P> void open(P peer, Object data, Map<String, StreamHandler<P>> handlers) {
+        if (!(data instanceof List)) return;
+        List<?> info = (List<?>) data;
+        if (info.size() < 4 || !(info.get(0) instanceof Long) || !(info.get(1) instanceof String)
+                || !(info.get(3) instanceof Long)) return;
+        long id = (Long) info.get(0);
+        String tag = (String) info.get(1);
+        StreamHandler<P> handler = handlers.get(tag);
+        if (handler == null) {
+            Log.debug("No stream handler for {}", tag);
+            return;
+        }
+        try {
+            StreamReceiver receiver = handler.open(peer, String.valueOf(info.get(2)), (Long) info.get(3));
+            if (receiver != null) receivers.put(id, receiver);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(IncomingStreams.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Hands a received chunk frame to the receiver of its stream.
+     * @param body The buffer holding the body of the frame, its position and limit are left as they are
+     * @param offset The index of the body, after the header
+     */
+    public void chunk(ByteBuffer body, int offset, int length) {
+        if (length < PREFIX) return;
+        long id = body.getLong(offset);
+        int flags = body.get(offset + 8);
+        StreamReceiver receiver = receivers.get(id);
+        //streams that were ignored or aborted
+        if (receiver == null) return;
+        try {
+            if (length > PREFIX) {
+                ByteBuffer data = body.duplicate();
+                data.limit(offset + length).position(offset + PREFIX);
+                receiver.onChunk(data);
+            }
+            if ((flags & OutgoingStream.LAST) != 0) {
+                if (receivers.remove(id) != null) receiver.onEnd();
+            } else if ((flags & OutgoingStream.ABORTED) != 0) {
+                if (receivers.remove(id) != null) receiver.onAbort(new IOException("Aborted by the sender"));
+            }
+        } catch (IOException ex) {
+            if (receivers.remove(id) != null) receiver.onAbort(ex);
+        } catch (RuntimeException ex) {
+            if (receivers.remove(id) != null) receiver.onAbort(new IOException(ex));
+        }
+    }
+
+    /**
+     * Aborts every stream being received, when the connection is lost.
+     */
+    public void abortAll(IOException cause) {
+        for (Long id : receivers.keySet()) {
+            StreamReceiver receiver = receivers.remove(id);
+            if (receiver != null) receiver.onAbort(cause);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.chaitanyav;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The console log of the library. A message below the level costs one comparison, with no
+ * string built. Messages at or above it are queued with their arguments and formatted and
+ * written by a daemon thread, so the threads handling connections never wait for the
+ * console. When the queue is full messages are dropped rather than waited for, see
+ * getDropped(). {} in a message is replaced by the next argument.
+ * Errors with stack traces still go to java.util.logging.
+ * @author Chaitanya V
+ */
+public final class Log {
+    private Log() {}
+
+    /**
+     * Where the log is written, System.out by default.
+     */
+    public interface Sink {
+        /**
+         * Called on the log thread only.
+         */
+        void write(LogLevel level, String message);
+    }
+
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private static volatile int threshold = LogLevel.INFO.ordinal();
+    private static volatile Sink sink = (level, message) -> System.out.println(message);
+    private static final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    //records queued and records written, so flush also waits for the one the writer is writing
+    private static final AtomicLong queued = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static volatile Thread writer;
+
+    public static void setLevel(LogLevel level) {
+        threshold = level.ordinal();
+    }
+
+    public static LogLevel getLevel() {
+        return LogLevel.values()[threshold];
+    }
+
+    /**
+     * @param sink Replaces System.out, for example to forward the log to a logging framework
+     */
+    public static void setSink(Sink sink) {
+        Log.sink = sink;
+    }
+
+    public static boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * @return The number of messages dropped because the queue was full
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void trace(String message, Object arg) {
+        if (LogLevel.TRACE.ordinal() >= threshold) enqueue(LogLevel.TRACE, message, arg, null);
+    }
+
+    public static void trace(String message, Object arg1, Object arg2) {
+        if (LogLevel.TRACE.ordinal() >= threshold) enqueue(LogLevel.TRACE, message, arg1, arg2);
+    }
+
+    public static void debug(String message, Object arg) {
+        if (LogLevel.DEBUG.ordinal() >= threshold) enqueue(LogLevel.DEBUG, message, arg, null);
+    }
+
+    public static void debug(String message, Object arg1, Object arg2) {
+        if (LogLevel.DEBUG.ordinal() >= threshold) enqueue(LogLevel.DEBUG, message, arg1, arg2);
+    }
+
+    public static void info(String message) {
+        if (LogLevel.INFO.ordinal() >= threshold) enqueue(LogLevel.INFO, message, null, null);
+    }
+
+    public static void info(String message, Object arg) {
+        if (LogLevel.INFO.ordinal() >= threshold) enqueue(LogLevel.INFO, message, arg, null);
+    }
+
+    public static void warn(String message) {
+        if (LogLevel.WARN.ordinal() >= threshold) enqueue(LogLevel.WARN, message, null, null);
+    }
+
+    public static void warn(String message, Object arg) {
+        if (LogLevel.WARN.ordinal() >= threshold) enqueue(LogLevel.WARN, message, arg, null);
+    }
+
+    /**
+     * For messages that need more than formatting, the supplier is only called when the level is enabled.
+     */
+    public static void log(LogLevel level, Supplier<String> message) {
+        if (level.ordinal() >= threshold) enqueue(level, "{}", message, null);
+    }
+
+    /**
+     * Blocks until the messages queued before the call have been written, at most for the given time.
+     */
+    public static void flush(long timeout_ms) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        long target = queued.get();
+        synchronized (queue) {
+            while (written.get() < target && System.currentTimeMillis() < deadline) {
+                queue.wait(10);
+            }
+        }
+    }
+
+    private static void enqueue(LogLevel level, String message, Object arg1, Object arg2) {
+        if (writer == null) startWriter();
+        if (queue.offer(new Record(level, message, arg1, arg2))) queued.incrementAndGet();
+        else dropped.incrementAndGet();
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) return;
+        Thread thread = Threads.factory("Log", false, true).newThread(Log::write);
+        thread.start();
+        //messages logged right before exiting still get written
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flush(1000);
+            } catch (InterruptedException ex) {
+            }
+        }));
+        writer = thread;
+    }
+
+    private static void write() {
+        while (true) {
+            try {
+                Record record = queue.take();
+                write(record);
+                drain();
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private static void drain() {
+        ArrayList<Record> records = new ArrayList<>();
+        queue.drainTo(records);
+        for (Record record : records) {
+            write(record);
+        }
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+    }
+
+    private static void write(Record record) {
+        try {
+            sink.write(record.level, format(record.message, record.arg1, record.arg2));
+        } catch (RuntimeException ex) {
+            //a broken sink must not stop the log thread
+            dropped.incrementAndGet();
+        }
+        written.incrementAndGet();
+    }
+
+    private static String format(String message, Object arg1, Object arg2) {
+        StringBuilder text = new StringBuilder(message.length() + 32);
+        int from = 0, args = 0;
+        for (int at; args < 2 && (at = message.indexOf("{}", from)) >= 0; from = at + 2) {
+            Object arg = args++ == 0 ? arg1 : arg2;
+            if (arg instanceof Supplier) arg = ((Supplier<?>) arg).get();
+            text.append(message, from, at).append(arg);
+        }
+        return text.append(message, from, message.length()).toString();
+    }
+
+    private static final class Record {
+        final LogLevel level;
+        final String message;
+        final Object arg1, arg2;
+
+        Record(LogLevel level, String message, Object arg1, Object arg2) {
+            this.level = level;
+            this.message = message;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.chaitanyav;
+
+/**
+ * The levels of Log, from the most to the least detailed.
+ * @author Chaitanya V
+ */
+public enum LogLevel {
+    //every message sent and received
+    TRACE,
+    //heartbeats and other connection details
+    DEBUG,
+    //connections and the life cycle of servers and clients, the default
+    INFO,
+    WARN,
+    ERROR,
+    //nothing is logged
+    OFF
+}
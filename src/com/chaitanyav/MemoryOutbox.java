@@ -0,0 +1,132 @@
+package com.chaitanyav;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The default Outbox. Keeps the messages of every key in a ring buffer in memory, which
+ * grows with the messages up to the capacity. A full buffer overwrites its oldest message.
+ * Beyond maxTotal messages for all keys together new messages are dropped. Messages are lost
+ * when the application exits, use FileOutbox to keep them across restarts.
+ * @author Chaitanya V
+ */
+public class MemoryOutbox implements Outbox {
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_MAX_TOTAL = 100000;
+
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final int maxTotal;
+    //the messages of all keys
+    private final AtomicInteger total = new AtomicInteger();
+
+    public MemoryOutbox() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of messages kept per key, 0 keeps none
+     */
+    public MemoryOutbox(int capacity) {
+        this(capacity, DEFAULT_MAX_TOTAL);
+    }
+
+    /**
+     * @param capacity The number of messages kept per key, 0 keeps none
+     * @param maxTotal The number of messages kept for all keys together
+     */
+    public MemoryOutbox(int capacity, int maxTotal) {
+        this.capacity = capacity;
+        this.maxTotal = maxTotal;
+    }
+
+    @Override
+    public void store(String key, Message msg) {
+        if (capacity <= 0) return;
+        //compute, so a concurrent drain can't take the ring away while the message is added
+        rings.compute(key, (k, ring) -> {
+            if (ring == null) ring = new Ring(capacity);
+            synchronized (ring) {
+                //a full ring overwrites its oldest message, the total stays the same
+                if (ring.size < capacity && total.incrementAndGet() > maxTotal) {
+                    total.decrementAndGet();
+                    Logger.getLogger(MemoryOutbox.class.getName()).log(Level.WARNING, "Outbox full, message dropped for {0}", key);
+                } else {
+                    ring.add(msg);
+                }
+                return ring.size == 0 ? null : ring;
+            }
+        });
+    }
+
+    @Override
+    public List<Message> drain(String key) {
+        Ring ring = rings.remove(key);
+        if (ring == null) return Collections.emptyList();
+        synchronized (ring) {
+            total.addAndGet(-ring.size);
+            return ring.toList();
+        }
+    }
+
+    @Override
+    public int size(String key) {
+        Ring ring = rings.get(key);
+        if (ring == null) return 0;
+        synchronized (ring) {
+            return ring.size;
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        Ring ring = rings.remove(key);
+        if (ring == null) return;
+        synchronized (ring) {
+            total.addAndGet(-ring.size);
+        }
+    }
+
+    private static final class Ring {
+        //the first array of a ring, most keys never get more messages
+        private static final int INITIAL_CAPACITY = 8;
+
+        private final int capacity;
+        private Message[] messages;
+        //index of the oldest message
+        private int head = 0;
+        private int size = 0;
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            messages = new Message[Math.min(capacity, INITIAL_CAPACITY)];
+        }
+
+        void add(Message msg) {
+            if (size == messages.length && size < capacity) {
+                Message[] grown = new Message[Math.min(capacity, size * 2)];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = messages[(head + i) % messages.length];
+                }
+                messages = grown;
+                head = 0;
+            }
+            messages[(head + size) % messages.length] = msg;
+            if (size < messages.length) size++;
+            else head = (head + 1) % messages.length;
+        }
+
+        List<Message> toList() {
+            ArrayList<Message> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(messages[(head + i) % messages.length]);
+            }
+            return list;
+        }
+    }
+}
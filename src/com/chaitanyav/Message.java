@@ -9,9 +9,25 @@ import java.io.Serializable;
 public class Message implements Serializable{
     private String tag;
     private Object data;
+    //pairs a reply with its request, 0 if the message is not part of a call
+    private long correlationId;
+    private boolean reply;
+    //the id of the tag in the receiver's TagTable, 0 if unknown. only set on received messages
+    private transient int tagId;
     public Message(String tag,Object data){
+        this(tag,data,0,false);
+    }
+    /**
+     * @param tag
+     * @param data
+     * @param correlationId The id of the call, 0 if the message is not part of a call
+     * @param reply TRUE if the message answers the request with the same correlationId
+     */
+    public Message(String tag,Object data,long correlationId,boolean reply){
         this.tag=tag;
         this.data=data;
+        this.correlationId=correlationId;
+        this.reply=reply;
     }
     public Object getData(){
         return data;
@@ -19,4 +35,19 @@ public class Message implements Serializable{
     public String getTag(){
         return tag;
     }
+    /**
+     * @return The id of the tag in the TagTable of the receiver, 0 if the codec didn't resolve it
+     */
+    public int getTagId(){
+        return tagId;
+    }
+    void setTagId(int tagId){
+        this.tagId=tagId;
+    }
+    public long getCorrelationId(){
+        return correlationId;
+    }
+    public boolean isReply(){
+        return reply;
+    }
 }
@@ -0,0 +1,76 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts Message objects to and from the bytes carried in the body of a frame.
+ * A codec is set on the Server and on the Client, both ends must use the same one.
+ * Every connection gets its own Encoder and Decoder, so codecs that keep state
+ * between messages can keep it in them. The framing itself is done by FrameCodec.
+ * @author Chaitanya V
+ */
+public interface MessageCodec {
+
+    /**
+     * Called once for every new connection.
+     * @return The encoder for the messages sent on the connection
+     */
+    Encoder newEncoder();
+
+    /**
+     * Called once for every new connection.
+     * @return The decoder for the messages received on the connection
+     */
+    Decoder newDecoder();
+
+    /**
+     * @return true if the encoding of a message doesn't depend on the messages encoded before
+     * it. A message broadcast by the Server is then encoded once and the same frame is written
+     * to every client. False by default.
+     */
+    default boolean isStateless() {
+        return false;
+    }
+
+    /**
+     * Called once for every new connection instead of newEncoder() by codecs that send tag ids.
+     * @param peerTags The ids the other end assigned to its tags, filled in when its table arrives
+     * @return newEncoder() by default, tags are then always sent as strings
+     */
+    default Encoder newEncoder(TagTable peerTags) {
+        return newEncoder();
+    }
+
+    /**
+     * Called once for every new connection instead of newDecoder() by codecs that send tag ids.
+     * @param localTags The ids assigned to the tags of this end
+     * @return newDecoder() by default
+     */
+    default Decoder newDecoder(TagTable localTags) {
+        return newDecoder();
+    }
+
+    interface Encoder {
+        /**
+         * Writes the message to the body of a frame. Never called concurrently for the same connection.
+         * @param msg
+         * @param out
+         * @throws IOException If the message can't be encoded. Nothing written to out is sent then.
+         */
+        void encode(Message msg, OutputStream out) throws IOException;
+    }
+
+    interface Decoder {
+        /**
+         * Reads a message from the body of a frame. The stream ends with the frame and
+         * its available() method returns the number of unread bytes of the frame.
+         * @param in
+         * @return The decoded message
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        Message decode(InputStream in) throws IOException, ClassNotFoundException;
+    }
+}
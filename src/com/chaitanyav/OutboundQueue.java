@@ -0,0 +1,210 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The outgoing frames of one blocking connection.
+ * Senders only add frames to the queue and return, a single drain task running on a
+ * shared executor copies everything that is queued into one array and writes it once per
+ * batch. Pooled frames are released as soon as they have been copied. Many small messages sent at a high rate therefore turn into a few
+ * large writes instead of one system call each.
+ * Frames are written in the order they were added.
+ * @author Chaitanya V
+ */
+public final class OutboundQueue {
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    /**
+     * Told about the messages that could not be written, in the order they were added.
+     * Called at most once, on the thread of the drain task. The queue is closed by then.
+     */
+    public interface FailureListener {
+        void onWriteFailed(ArrayList<Message> unsent, IOException cause);
+    }
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final WriteWatermarks queuedBytes;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    private final OutputStream out;
+    //only touched by the drain task
+    private final byte[] batch;
+    private final Executor executor;
+    private final long maxDelayNanos;
+    private final FailureListener listener;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param out The stream of the connection
+     * @param executor Runs the drain task
+     * @param maxBatchBytes The stream is written whenever this many bytes have been batched
+     * @param maxDelayMicros How long the drain task waits for more frames before writing a batch
+     * that is smaller than maxBatchBytes. 0 writes right away.
+     * @param listener
+     */
+    public OutboundQueue(OutputStream out, Executor executor, int maxBatchBytes, long maxDelayMicros, FailureListener listener) {
+        this(out, executor, maxBatchBytes, maxDelayMicros, listener, new WriteWatermarks());
+    }
+
+    /**
+     * Same as the other constructor, counting the queued bytes with the watermarks.
+     */
+    public OutboundQueue(OutputStream out, Executor executor, int maxBatchBytes, long maxDelayMicros, FailureListener listener,
+            WriteWatermarks watermarks) {
+        this.queuedBytes = watermarks;
+        this.out = out;
+        this.batch = new byte[Math.max(maxBatchBytes, 512)];
+        this.executor = executor;
+        this.maxDelayNanos = maxDelayMicros * 1000;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a frame, never blocks on the connection.
+     * @param msg The message contained in the frame, handed to the FailureListener if it can't be written
+     * @param frame The encoded frame
+     * @throws SocketException If the queue was closed because of an earlier failure
+     */
+    public void add(Message msg, byte[] frame) throws SocketException {
+        add(msg, ByteBuffer.wrap(frame), null, null);
+    }
+
+    /**
+     * Queues a pooled frame, released once it has been written or couldn't be.
+     * @param msg The message contained in the frame, null for frames that don't hold a
+     * message, such as the chunks of a stream
+     * @param data The bytes to write, between its position and limit. The buffer of frame
+     * itself, or a duplicate of it when the frame is shared by several connections.
+     * @param frame Released when data has been written, null if there is nothing to release
+     * @param onWritten Runs on the thread of the drain task once the frame has been written, must not block
+     * @throws SocketException If the queue was closed because of an earlier failure, the frame is released
+     */
+    public void add(Message msg, ByteBuffer data, PooledBuffer frame, Runnable onWritten) throws SocketException {
+        Entry entry = new Entry(msg, data, frame, onWritten);
+        if (closed) {
+            entry.release();
+            throw new SocketException("Connection closed");
+        }
+        int bytes = data.remaining();
+        //counted before it is queued, so a drain task writing it can't take the count below zero
+        queuedBytes.added(bytes);
+        queue.add(entry);
+        if (closed && queue.remove(entry)) {
+            //lost the race with a failing drain task
+            queuedBytes.removed(bytes);
+            entry.release();
+            throw new SocketException("Connection closed");
+        }
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    /**
+     * @return The number of bytes queued but not yet written
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.getQueuedBytes();
+    }
+
+    /**
+     * Removes the oldest queued messages until at least the given number of bytes are freed,
+     * skipping frames that don't hold a message and the one being written.
+     * @return The removed messages, oldest first. Their frames are released.
+     */
+    public ArrayList<Message> dropOldest(long bytes) {
+        ArrayList<Message> dropped = new ArrayList<>();
+        long freed = 0;
+        for (Entry entry : queue) {
+            if (freed >= bytes) break;
+            //only wins against the drain task if it hasn't taken the entry yet
+            if (entry.msg == null || !queue.remove(entry)) continue;
+            freed += entry.data.remaining();
+            entry.release();
+            dropped.add(entry.msg);
+        }
+        queuedBytes.removed(freed);
+        return dropped;
+    }
+
+    private void drain() {
+        if (maxDelayNanos > 0 && queuedBytes.getQueuedBytes() < batch.length) {
+            //let a few more frames arrive so they go out in the same write
+            LockSupport.parkNanos(maxDelayNanos);
+        }
+        Entry entry = null;
+        try {
+            do {
+                int pos = 0;
+                while ((entry = queue.poll()) != null) {
+                    ByteBuffer data = entry.data;
+                    int bytes = data.remaining();
+                    while (data.hasRemaining()) {
+                        if (pos == batch.length) {
+                            out.write(batch, 0, pos);
+                            pos = 0;
+                        }
+                        int n = Math.min(data.remaining(), batch.length - pos);
+                        data.get(batch, pos, n);
+                        pos += n;
+                    }
+                    entry.release();
+                    queuedBytes.removed(bytes);
+                    if (entry.onWritten != null) entry.onWritten.run();
+                }
+                if (pos > 0) out.write(batch, 0, pos);
+                out.flush();
+                draining.set(false);
+                //a frame added after the last poll but before draining was cleared finds
+                //draining still set and relies on this check to be written
+            } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+        } catch (IOException ex) {
+            closed = true;
+            ArrayList<Message> unsent = new ArrayList<>();
+            //an entry is only released once copied, so a failing write leaves the one being copied unreleased
+            if (entry != null) {
+                entry.release();
+                if (entry.msg != null) unsent.add(entry.msg);
+            }
+            while ((entry = queue.poll()) != null) {
+                entry.release();
+                if (entry.msg != null) unsent.add(entry.msg);
+            }
+            queuedBytes.clear();
+            listener.onWriteFailed(unsent, ex);
+        }
+    }
+
+    private static final class Entry {
+        final Message msg;
+        final ByteBuffer data;
+        final PooledBuffer frame;
+        final Runnable onWritten;
+
+        Entry(Message msg, ByteBuffer data, PooledBuffer frame, Runnable onWritten) {
+            this.msg = msg;
+            this.data = data;
+            this.frame = frame;
+            this.onWritten = onWritten;
+        }
+
+        void release() {
+            if (frame != null) frame.release();
+        }
+    }
+}
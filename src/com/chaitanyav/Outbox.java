@@ -0,0 +1,51 @@
+package com.chaitanyav;
+
+import java.util.List;
+
+/**
+ * Keeps messages that could not be delivered until their receiver is back.
+ * The Server keeps the messages of every session in its outbox and sends them when the
+ * client resumes the session, the Client keeps the messages it could not send and sends
+ * them after it reconnected. Messages are kept per key, in the order they were stored.
+ * An outbox has a size limit per key and drops the oldest messages of a key beyond it.
+ * Implementations must be thread safe.
+ * @author Chaitanya V
+ */
+public interface Outbox {
+
+    /**
+     * Keeps a message for the key. Never blocks for long, may drop older messages of the key,
+     * or this one if the outbox has a limit for all keys together.
+     * @param key
+     * @param msg
+     */
+    void store(String key, Message msg);
+
+    /**
+     * Removes the messages kept for the key.
+     * @param key
+     * @return The messages in the order they were stored, empty if there are none
+     */
+    List<Message> drain(String key);
+
+    /**
+     * @param key
+     * @return The number of messages kept for the key
+     */
+    int size(String key);
+
+    /**
+     * Drops the messages kept for the key, when the receiver won't come back.
+     * @param key
+     */
+    void remove(String key);
+
+    /**
+     * Drops the keys an earlier run of the application left in the outbox which haven't been
+     * used since and are at least age_ms old, their receivers won't come back. The Server calls
+     * it with its session timeout, sessions don't outlive the server. Does nothing by default.
+     * @param age_ms
+     */
+    default void removeStale(long age_ms) {
+    }
+}
@@ -0,0 +1,206 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A file or another large payload sent to the other end in chunks, see ClientHandler.sendFile
+ * and Client.sendFile. The stream starts with a STREAM message naming it, followed by chunk
+ * frames that bypass the MessageCodec. Only a couple of chunks of a stream are queued at a
+ * time, the next one is read when one of them has been written, so the memory a transfer
+ * takes doesn't grow with its size and messages sent meanwhile go out between the chunks
+ * instead of waiting for the whole transfer. Transports that write to a SocketChannel send
+ * the chunks of a file with FileChannel.transferTo, without copying them through the heap.
+ * @author Chaitanya V
+ */
+public final class OutgoingStream {
+    public static final int CHUNK_BYTES = 64 * 1024;
+    //chunks queued but not yet written
+    private static final int WINDOW = 2;
+    //flags of chunk frames
+    static final int LAST = 1, ABORTED = 2;
+
+    /**
+     * How a connection queues the chunks of a stream.
+     */
+    public interface Transport {
+        /**
+         * Queues a chunk frame among the messages of the connection.
+         * @param frame The frame, or only its header if file isn't null. Released by the
+         * transport once written, or right away if it can't be queued.
+         * @param file null if the frame holds the data, otherwise the transport appends
+         * length bytes of the file starting at position
+         * @param onWritten Runs once the chunk has been written, on the thread writing the connection
+         * @throws IOException If the connection is closed
+         */
+        void queue(PooledBuffer frame, FileChannel file, long position, int length, Runnable onWritten) throws IOException;
+    }
+
+    private final long id;
+    private final String tag;
+    private final String name;
+    private final long length;
+    //one of them is set
+    private final FileChannel file;
+    private final ReadableByteChannel in;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final BufferPool pool = BufferPool.getDefault();
+
+    private Transport transport;
+    private Executor executor;
+    private boolean fileRegions;
+    private long position = 0;
+    private boolean ended = false;
+    private final Runnable next = () -> executor.execute(this::next);
+
+    {
+        future.whenComplete((v, ex) -> close());
+    }
+
+    /**
+     * Sends a file, named by its file name.
+     * @param id Unique among the streams sent on the connection
+     */
+    public OutgoingStream(long id, String tag, Path path) throws IOException {
+        this.id = id;
+        this.tag = tag;
+        this.name = path.getFileName().toString();
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.in = null;
+        this.length = file.size();
+    }
+
+    /**
+     * Sends what is read from the stream until its end.
+     * @param id Unique among the streams sent on the connection
+     * @param length The number of bytes expected, -1 if unknown. Only passed on to the receiver.
+     */
+    public OutgoingStream(long id, String tag, String name, InputStream in, long length) {
+        this.id = id;
+        this.tag = tag;
+        this.name = name;
+        this.file = null;
+        this.in = Channels.newChannel(in);
+        this.length = length;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return Completed once the last chunk has been written, or failed with the reason the
+     * stream was aborted
+     */
+    public CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * @return The message announcing the stream, queued right before start() is called
+     */
+    public Message getOpenMessage() {
+        return new Message(Constants.STREAM, new ArrayList<Object>(Arrays.asList(id, tag, name, length)));
+    }
+
+    /**
+     * Starts queueing chunks. The source is closed when the stream ends or is aborted.
+     * @param executor Reads the chunks, so reading never runs on the thread writing the connection
+     * @param fileRegions true if the transport copies the bytes of files itself
+     */
+    public void start(Transport transport, Executor executor, boolean fileRegions) {
+        this.transport = transport;
+        this.executor = executor;
+        this.fileRegions = fileRegions;
+        for (int i = 0; i < WINDOW; i++) {
+            next();
+        }
+    }
+
+    /**
+     * Aborts the stream, for example because the connection was lost. Chunks already queued
+     * may still be written.
+     */
+    public void abort(IOException cause) {
+        future.completeExceptionally(cause);
+    }
+
+    //queues the next chunk, called once for every chunk written
+    private synchronized void next() {
+        if (ended || future.isDone()) return;
+        PooledBuffer frame;
+        FileChannel region = null;
+        long at = position;
+        int n = 0;
+        boolean last;
+        if (file != null) {
+            n = (int) Math.min(CHUNK_BYTES, length - position);
+            frame = pool.acquire(FrameCodec.CHUNK_HEADER_LENGTH + (fileRegions ? 0 : n));
+        } else {
+            frame = pool.acquire(FrameCodec.CHUNK_HEADER_LENGTH + CHUNK_BYTES);
+        }
+        ByteBuffer data = frame.buffer();
+        data.position(FrameCodec.CHUNK_HEADER_LENGTH);
+        try {
+            if (file != null) {
+                if (fileRegions) {
+                    region = file;
+                } else {
+                    data.limit(FrameCodec.CHUNK_HEADER_LENGTH + n);
+                    while (data.hasRemaining()) {
+                        if (file.read(data, at + data.position() - FrameCodec.CHUNK_HEADER_LENGTH) < 0) {
+                            throw new IOException("File shrank while being sent");
+                        }
+                    }
+                }
+                last = position + n >= length;
+            } else {
+                data.limit(FrameCodec.CHUNK_HEADER_LENGTH + CHUNK_BYTES);
+                last = false;
+                while (data.hasRemaining() && !last) {
+                    last = in.read(data) < 0;
+                }
+                n = data.position() - FrameCodec.CHUNK_HEADER_LENGTH;
+            }
+        } catch (IOException ex) {
+            //tell the receiver, the chunks it got are all there is
+            ended = true;
+            data.clear().limit(FrameCodec.CHUNK_HEADER_LENGTH);
+            FrameCodec.putChunkHeader(data, id, 0, ABORTED);
+            try {
+                transport.queue(frame, null, 0, 0, null);
+            } catch (IOException closed) {
+            }
+            future.completeExceptionally(ex);
+            return;
+        }
+        position += n;
+        ended = last;
+        data.flip();
+        FrameCodec.putChunkHeader(data, id, n, last ? LAST : 0);
+        try {
+            transport.queue(frame, region, at, n, last ? () -> future.complete(null) : next);
+        } catch (IOException ex) {
+            ended = true;
+            future.completeExceptionally(ex);
+        }
+    }
+
+    private void close() {
+        try {
+            if (file != null) file.close();
+            if (in != null) in.close();
+        } catch (IOException ex) {
+        }
+    }
+}
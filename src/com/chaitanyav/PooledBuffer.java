@@ -0,0 +1,74 @@
+package com.chaitanyav;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A direct ByteBuffer taken from a BufferPool. It goes back to the pool when it has been
+ * released as many times as it was acquired and retained, and must not be touched after that.
+ * Frames shared by several connections are retained once for every connection that writes them.
+ * @author Chaitanya V
+ */
+public final class PooledBuffer {
+    private static final AtomicIntegerFieldUpdater<PooledBuffer> REF_COUNT
+            = AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refCount");
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    //index of the size class in the pool, -1 for buffers too large to be pooled
+    final int sizeClass;
+    private volatile int refCount;
+    //set while the buffer is out of the pool with leak detection on
+    volatile BufferPool.Tracker tracker;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * @return The buffer, cleared when it was acquired
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCount() {
+        return refCount;
+    }
+
+    /**
+     * @return this
+     * @throws IllegalStateException If the buffer was already released
+     */
+    public PooledBuffer retain() {
+        int count = REF_COUNT.getAndIncrement(this);
+        if (count <= 0) {
+            REF_COUNT.getAndDecrement(this);
+            throw new IllegalStateException("Buffer already released");
+        }
+        return this;
+    }
+
+    /**
+     * @return true if this was the last reference and the buffer went back to the pool
+     * @throws IllegalStateException If the buffer was already released
+     */
+    public boolean release() {
+        int count = REF_COUNT.decrementAndGet(this);
+        if (count > 0) return false;
+        if (count < 0) {
+            REF_COUNT.getAndIncrement(this);
+            throw new IllegalStateException("Buffer released twice");
+        }
+        pool.recycle(this);
+        return true;
+    }
+
+    //called by the pool when the buffer is handed out
+    void acquired() {
+        buffer.clear();
+        refCount = 1;
+    }
+}
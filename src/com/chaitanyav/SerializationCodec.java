@@ -0,0 +1,151 @@
+package com.chaitanyav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes messages with Java serialization, as all versions before MessageCodec did.
+ * Any Serializable object can be sent as data, but both ends need the classes and the
+ * receiver will deserialize whatever the peer sends. Use it only between trusted peers.
+ * The serialization stream of a connection is kept open across frames so class
+ * descriptors are only sent once per connection. The stream remembers every object
+ * written to it, so the encoder resets it, on both ends, after a number of messages
+ * or bytes. Without resets the memory used by a connection grows with every message.
+ * @author Chaitanya V
+ */
+public class SerializationCodec implements MessageCodec {
+    public static final int DEFAULT_RESET_MESSAGES = 1024;
+    public static final long DEFAULT_RESET_BYTES = 1024 * 1024;
+
+    private final int resetMessages;
+    private final long resetBytes;
+
+    /**
+     * Creates a codec that resets the stream every DEFAULT_RESET_MESSAGES messages
+     * or DEFAULT_RESET_BYTES bytes, whichever comes first.
+     */
+    public SerializationCodec() {
+        this(DEFAULT_RESET_MESSAGES, DEFAULT_RESET_BYTES);
+    }
+
+    /**
+     * @param resetMessages Reset the stream after this many messages, 0 to not count messages
+     * @param resetBytes Reset the stream after this many bytes, 0 to not count bytes.
+     * If both are 0 the stream is never reset and keeps every object ever sent reachable.
+     */
+    public SerializationCodec(int resetMessages, long resetBytes) {
+        this.resetMessages = resetMessages;
+        this.resetBytes = resetBytes;
+    }
+
+    @Override
+    public Encoder newEncoder() {
+        return new SerializationEncoder(resetMessages, resetBytes);
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return new SerializationDecoder();
+    }
+
+
+    private static final class SerializationEncoder implements Encoder {
+        private final Buffer buffer = new Buffer();
+        private final ObjectOutputStream out;
+        private final int resetMessages;
+        private final long resetBytes;
+        //written since the last reset
+        private int messages = 0;
+        private long bytes = 0;
+
+        SerializationEncoder(int resetMessages, long resetBytes) {
+            this.resetMessages = resetMessages;
+            this.resetBytes = resetBytes;
+            try {
+                //the stream header stays in the buffer and goes out with the first message
+                out = new ObjectOutputStream(buffer);
+            } catch (IOException ex) {
+                //never thrown by an in-memory stream
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void encode(Message msg, OutputStream target) throws IOException {
+            int start = buffer.size();
+            try {
+                out.writeObject(msg);
+                out.flush();
+            } catch (IOException ex) {
+                //drop whatever was written for this message and ask the reader to forget
+                //its handles too, so that both ends stay in step
+                out.flush();
+                buffer.truncate(start);
+                out.reset();
+                messages = 0;
+                bytes = 0;
+                throw ex;
+            }
+            target.write(buffer.array(), 0, buffer.size());
+            messages++;
+            bytes += buffer.size();
+            buffer.reset();
+            if ((resetMessages > 0 && messages >= resetMessages) || (resetBytes > 0 && bytes >= resetBytes)) {
+                //clears the handle table here, the reset marker goes out with the next message
+                //and clears the reader's table before it reads that message
+                out.reset();
+                messages = 0;
+                bytes = 0;
+            }
+        }
+    }
+
+    private static final class SerializationDecoder implements Decoder {
+        private final FrameStream frames = new FrameStream();
+        //created on the first frame as the stream header arrives with it
+        private ObjectInputStream in = null;
+
+        @Override
+        public Message decode(InputStream frame) throws IOException, ClassNotFoundException {
+            frames.current = frame;
+            if (in == null) {
+                in = new ObjectInputStream(frames);
+            }
+            return (Message) in.readObject();
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+
+        void truncate(int size) {
+            count = size;
+        }
+    }
+
+    //lets one ObjectInputStream read a connection frame after frame
+    private static final class FrameStream extends InputStream {
+        InputStream current;
+
+        @Override
+        public int read() throws IOException {
+            return current.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return current.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current.available();
+        }
+    }
+}
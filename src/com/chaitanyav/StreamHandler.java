@@ -0,0 +1,20 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+
+/**
+ * Accepts the streams sent with a tag, see Server.setStreamHandler and Client.setStreamHandler.
+ * @author Chaitanya V
+ * @param <P> The end that sent the stream, ClientHandler on the server and Client on the client
+ */
+public interface StreamHandler<P> {
+    /**
+     * Called when a stream starts, on the same thread as the chunks of the stream, see
+     * StreamReceiver.
+     * @param peer
+     * @param name The name given by the sender, the file name for sendFile()
+     * @param length The number of bytes that follow, -1 if the sender didn't know
+     * @return The receiver of the chunks, null to ignore the stream
+     */
+    StreamReceiver open(P peer, String name, long length) throws IOException;
+}
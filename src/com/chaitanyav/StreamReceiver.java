@@ -0,0 +1,35 @@
+package com.chaitanyav;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the chunks of one stream sent with ClientHandler.sendFile() or Client.sendFile(),
+ * see StreamHandler. Called in the order the chunks were sent. On the Client and on the
+ * server's blocking transport it is called on the thread reading the connection, so a slow
+ * receiver stops the reading and TCP flow control slows down the sender. With the selector
+ * transport it is called on the server's sequential pool, in order with the actions of the
+ * client, and the event loop stops reading the client while a few chunks are waiting, which
+ * slows down the sender the same way. A blocking onChunk holds one of the threads of the
+ * sequential pool, which are shared by all clients, see Server.setSequentialPoolSize.
+ * FileReceiver writes the chunks to a file.
+ * @author Chaitanya V
+ */
+public interface StreamReceiver {
+    /**
+     * @param chunk The next bytes of the stream, only valid during the call
+     * @throws IOException To abort the stream, onAbort is called with it
+     */
+    void onChunk(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Called after the last chunk.
+     */
+    void onEnd() throws IOException;
+
+    /**
+     * Called instead of onEnd when the sender failed to read its source, the connection
+     * was lost or onChunk threw. No more chunks follow.
+     */
+    void onAbort(IOException cause);
+}
@@ -0,0 +1,149 @@
+package com.chaitanyav;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Maps tags to small integer ids, so frames carry an id instead of the tag and received
+ * messages are dispatched by an array index instead of a map lookup.
+ * The Server and the Client each have a table of the tags they have Actions for, an id is
+ * assigned when the Action is set. At the start of every connection both ends send their
+ * table to the other one, and from then on messages with a known tag are sent with the id
+ * the receiver assigned. Tags without an id, for example of Actions set later, are still
+ * sent as strings. The reserved tags have the same well-known ids everywhere.
+ * Reading is lock free, changes replace the whole table.
+ * @author Chaitanya V
+ */
+public final class TagTable {
+    //well-known ids of the reserved tags
+    public static final int PING = 1, PONG = 2, SUBSCRIBE = 3, UNSUBSCRIBE = 4, RESUME = 5, SESSION = 6, TAGS = 7, COMPRESS = 8, STREAM = 9;
+    //ids below this are reserved
+    public static final int FIRST_ID = 32;
+
+    private static final Snapshot WELL_KNOWN;
+
+    static {
+        String[] tags = new String[FIRST_ID];
+        tags[PING] = Constants.PING;
+        tags[PONG] = Constants.PONG;
+        tags[SUBSCRIBE] = Constants.SUBSCRIBE;
+        tags[UNSUBSCRIBE] = Constants.UNSUBSCRIBE;
+        tags[RESUME] = Constants.RESUME;
+        tags[SESSION] = Constants.SESSION;
+        tags[TAGS] = Constants.TAGS;
+        tags[COMPRESS] = Constants.COMPRESS;
+        tags[STREAM] = Constants.STREAM;
+        WELL_KNOWN = new Snapshot(tags);
+    }
+
+    private volatile Snapshot snapshot = WELL_KNOWN;
+
+    /**
+     * @param tag
+     * @return true for the tags of the library, which can't have an Action
+     */
+    public static boolean isReserved(String tag) {
+        return WELL_KNOWN.ids.containsKey(tag);
+    }
+
+    /**
+     * @param tag
+     * @return The id of the tag, 0 if it has none
+     */
+    public int idOf(String tag) {
+        Integer id = snapshot.ids.get(tag);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * @param id
+     * @return The tag with the id, null if there is none
+     */
+    public String tagOf(int id) {
+        String[] tags = snapshot.tags;
+        return id > 0 && id < tags.length ? tags[id] : null;
+    }
+
+    /**
+     * Assigns the next id to the tag, if it has none yet.
+     * @param tag
+     * @return The id of the tag
+     */
+    public synchronized int register(String tag) {
+        int id = idOf(tag);
+        if (id != 0) return id;
+        String[] tags = Arrays.copyOf(snapshot.tags, snapshot.tags.length + 1);
+        tags[tags.length - 1] = tag;
+        snapshot = new Snapshot(tags);
+        return tags.length - 1;
+    }
+
+    /**
+     * @return The tags that aren't reserved, in the order of their ids starting from FIRST_ID.
+     * This is what is sent to the other end.
+     */
+    public List<String> toList() {
+        String[] tags = snapshot.tags;
+        return new ArrayList<>(Arrays.asList(tags).subList(FIRST_ID, tags.length));
+    }
+
+    /**
+     * Replaces the table with the tags received from the other end. Reserved tags in the list
+     * are skipped, they keep their well-known ids whatever the other end sends.
+     * @param tags As returned by toList() of the other end
+     */
+    public void setAll(List<String> tags) {
+        String[] all = Arrays.copyOf(WELL_KNOWN.tags, FIRST_ID + tags.size());
+        for (int i = 0; i < tags.size(); i++) {
+            String tag = tags.get(i);
+            //the slot stays empty, so the ids of the tags after it don't move
+            if (!isReserved(tag)) all[FIRST_ID + i] = tag;
+        }
+        snapshot = new Snapshot(all);
+    }
+
+    /**
+     * @param data The data of a received TAGS message
+     * @return The list of tags, or null if the data isn't a list of tags
+     */
+    public static List<String> toTagList(Object data) {
+        if (!(data instanceof List)) return null;
+        List<String> tags = new ArrayList<>();
+        for (Object tag : (List<?>) data) {
+            if (!(tag instanceof String)) return null;
+            tags.add((String) tag);
+        }
+        return tags;
+    }
+
+    /**
+     * Makes this table use the same tags as the other one, sharing its memory.
+     * @param other
+     */
+    public void copyFrom(TagTable other) {
+        snapshot = other.snapshot;
+    }
+
+    /**
+     * @return An object that is the same for tables with the same tags, as long as they were
+     * made with copyFrom from the same table
+     */
+    public Object version() {
+        return snapshot;
+    }
+
+    //immutable
+    private static final class Snapshot {
+        final String[] tags;
+        final HashMap<String, Integer> ids = new HashMap<>();
+
+        Snapshot(String[] tags) {
+            this.tags = tags;
+            for (int i = 1; i < tags.length; i++) {
+                if (tags[i] != null) ids.put(tags[i], i);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.chaitanyav;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of the library, either platform threads or, on JDK 21 and later,
+ * virtual threads. Virtual threads are looked up by reflection so that the library still
+ * builds and runs on Java 8, where asking for them silently gives platform threads.
+ * @author Chaitanya V
+ */
+public final class Threads {
+    private Threads() {}
+
+    //Thread.ofVirtual(), Thread.Builder.name(String) and factory(), Executors.newThreadPerTaskExecutor(ThreadFactory)
+    private static final Method OF_VIRTUAL, NAME, FACTORY, PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, perTask = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            factory = builder.getMethod("factory");
+            perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        PER_TASK_EXECUTOR = perTask;
+    }
+
+    /**
+     * @return true if the running JVM has virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param name The name of every thread of the factory
+     * @param virtual Creates virtual threads if the JVM supports them
+     * @param daemon Only used for platform threads, virtual threads are always daemon threads
+     * @return
+     */
+    public static ThreadFactory factory(final String name, boolean virtual, final boolean daemon) {
+        if (virtual && isVirtualSupported()) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return (r) -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+
+    /**
+     * An executor for tasks that come and go. Virtual threads are cheap and aren't pooled,
+     * every task gets a new one. Platform threads are pooled and reused.
+     * @param name
+     * @param virtual
+     * @param daemon
+     * @return
+     */
+    public static ExecutorService newCachedPool(String name, boolean virtual, boolean daemon) {
+        ThreadFactory factory = factory(name, virtual, daemon);
+        if (virtual && isVirtualSupported()) {
+            try {
+                return (ExecutorService) PER_TASK_EXECUTOR.invoke(null, factory);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+}
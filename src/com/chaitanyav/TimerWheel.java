@@ -0,0 +1,167 @@
+package com.chaitanyav;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel. One thread serves any number of timeouts, scheduling and
+ * cancelling a timeout is O(1) and every tick only looks at the timeouts of one bucket.
+ * Timeouts fire up to one tick late, which is fine for heartbeats and request timeouts.
+ * Tasks run on the thread of the wheel and must not block.
+ * @author Chaitanya V
+ */
+public final class TimerWheel implements Runnable {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+
+    //handed over from other threads and put into their buckets by the wheel thread
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    //only touched by the wheel thread
+    private long tick = 0;
+
+    /**
+     * @param name The name of the thread
+     * @param tickMs The resolution of the wheel
+     * @param buckets The number of buckets, rounded up to a power of two. Timeouts longer than
+     * tickMs*buckets go around the wheel more than once.
+     * @param daemon
+     */
+    public TimerWheel(String name, long tickMs, int buckets, boolean daemon) {
+        tickNanos = Math.max(tickMs, 1) * 1000000L;
+        int size = Integer.highestOneBit(Math.max(buckets, 2) - 1) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        thread = new Thread(this, name);
+        thread.setDaemon(daemon);
+        thread.start();
+    }
+
+    /**
+     * Runs the task once after the delay. May be called from any thread.
+     * @param task
+     * @param delayMs
+     * @return A handle that can cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(delayMs, 0) * 1000000L);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the thread of the wheel. Timeouts that haven't fired yet never will.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            waitForNextTick();
+            if (!running) break;
+            transferPending();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void waitForNextTick() {
+        long deadline = startTime + tickNanos * (tick + 1);
+        long now;
+        while (running && (now = System.nanoTime()) - deadline < 0) {
+            LockSupport.parkNanos(deadline - now);
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) continue;
+            //a timeout that is already due goes into the current bucket
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+        //links of the bucket, only touched by the wheel thread
+        private Timeout next, prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the task from running if it hasn't run yet. The timeout leaves its
+         * bucket the next time the wheel passes over it.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    //a doubly linked list of timeouts, only touched by the wheel thread
+    private static final class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            if (tail == null) head = timeout;
+            else tail.next = timeout;
+            tail = timeout;
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(TimerWheel.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) head = timeout.next;
+            else timeout.prev.next = timeout.next;
+            if (timeout.next == null) tail = timeout.prev;
+            else timeout.next.prev = timeout.prev;
+            timeout.next = timeout.prev = null;
+        }
+    }
+}
@@ -15,10 +15,10 @@ public class Utils {
     private Utils(){}
     
     
-    static boolean doLog = true;
-    public static void disableConsoleLogs(){doLog=false;}
-    public static void enableConsoleLogs(){doLog=true;}
+    //same as Log.setLevel(LogLevel.OFF) and Log.setLevel(LogLevel.INFO)
+    public static void disableConsoleLogs(){Log.setLevel(LogLevel.OFF);}
+    public static void enableConsoleLogs(){Log.setLevel(LogLevel.INFO);}
     public static void log(Object o){
-        if(doLog) System.out.println(o);
+        Log.info("{}", o);
     }
 }
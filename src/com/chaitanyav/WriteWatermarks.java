@@ -0,0 +1,103 @@
+package com.chaitanyav;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes queued on a connection but not yet written, and tells when the connection
+ * stops being writable because the count went above the high watermark, and when it is
+ * writable again because the count fell to the low watermark. Senders can check isWritable()
+ * to stop producing for a client that doesn't keep up, instead of letting its queue grow.
+ * @author Chaitanya V
+ */
+public final class WriteWatermarks {
+    public static final long DEFAULT_LOW = 32 * 1024;
+    public static final long DEFAULT_HIGH = 64 * 1024;
+
+    /**
+     * Called on the thread that queued or wrote the bytes that crossed a watermark, changes
+     * are reported in order, one at a time. A change that was undone before it could be
+     * reported may be skipped. Must not block, other changes wait for it.
+     */
+    public interface Listener {
+        void writabilityChanged(boolean writable);
+    }
+
+    private final long low;
+    private final long high;
+    private final Listener listener;
+    private final AtomicLong queued = new AtomicLong();
+    private volatile boolean writable = true;
+    //the last state told to the listener
+    private volatile boolean reported = true;
+    //set while a thread is calling the listener
+    private final AtomicBoolean notifying = new AtomicBoolean();
+
+    /**
+     * @param listener null for none
+     */
+    public WriteWatermarks(long low, long high, Listener listener) {
+        this.high = Math.max(high, 1);
+        this.low = Math.min(Math.max(low, 0), this.high);
+        this.listener = listener;
+    }
+
+    /**
+     * Watermarks that never make the connection unwritable, only counting.
+     */
+    public WriteWatermarks() {
+        this(Long.MAX_VALUE, Long.MAX_VALUE, null);
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public long getQueuedBytes() {
+        return queued.get();
+    }
+
+    public void added(long bytes) {
+        if (queued.addAndGet(bytes) > high && writable) update();
+    }
+
+    public void removed(long bytes) {
+        if (queued.addAndGet(-bytes) <= low && !writable) update();
+    }
+
+    /**
+     * Forgets the queued bytes, when the connection was closed with bytes still queued.
+     */
+    public void clear() {
+        queued.set(0);
+    }
+
+    private void update() {
+        if (transition() && listener != null) report();
+    }
+
+    //rechecks under the lock, the count may have crossed back meanwhile. true if writable changed
+    private synchronized boolean transition() {
+        long bytes = queued.get();
+        boolean now = writable ? bytes <= high : bytes <= low;
+        if (now == writable) return false;
+        writable = now;
+        return true;
+    }
+
+    //outside the lock, so a slow listener doesn't hold up the senders. one thread reports at a
+    //time, and reports again what changed while the listener ran
+    private void report() {
+        while (reported != writable && notifying.compareAndSet(false, true)) {
+            try {
+                boolean now = writable;
+                if (now != reported) {
+                    reported = now;
+                    listener.writabilityChanged(now);
+                }
+            } finally {
+                notifying.set(false);
+            }
+        }
+    }
+}
@@ -1,15 +1,40 @@
 package com.chaitanyav.client;
 
+import com.chaitanyav.ActionRegistry;
+import com.chaitanyav.BinaryCodec;
+import com.chaitanyav.Compression;
 import com.chaitanyav.Constants;
-import static com.chaitanyav.Utils.*;
+import com.chaitanyav.FrameCodec;
+import com.chaitanyav.FrameReader;
+import com.chaitanyav.Heartbeat;
+import com.chaitanyav.IncomingStreams;
+import com.chaitanyav.Log;
 import com.chaitanyav.Message;
+import com.chaitanyav.MessageCodec;
+import com.chaitanyav.OutboundQueue;
+import com.chaitanyav.OutgoingStream;
+import com.chaitanyav.Outbox;
+import com.chaitanyav.PooledBuffer;
+import com.chaitanyav.StreamHandler;
+import com.chaitanyav.TagTable;
+import com.chaitanyav.Threads;
+import com.chaitanyav.TimerWheel;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -19,7 +44,9 @@ import java.util.logging.Logger;
  * @author Chaitanya V
  */
 public class Client {
-    private HashMap<String, Action> actions = new HashMap<>();
+    //can be changed while messages are received, lookups don't lock
+    private final ActionRegistry<Action> actions = new ActionRegistry<>();
+    private final TagTable tags = actions.getTags();
     
     private int pingInterval=Constants.PING_INTERVAL;
     private int pongTimeout=Constants.PONG_TIMEOUT;
@@ -27,9 +54,25 @@ public class Client {
     private Socket socket;
     private String hostname="";
     private int port;
-    private ObjectInputStream inputStream = null;
-    private ObjectOutputStream outputStream = null;
-    final private Object outputStreamLock = new Object();
+    private FrameReader frameReader = null;
+    //frames waiting to be written, replaced on every connection
+    private OutboundQueue outbound = null;
+    private FrameCodec codec;
+    //the tag ids of the server, replaced on every connection
+    private TagTable peerTags;
+    private MessageCodec messageCodec = new BinaryCodec();
+    //asked for on every connection, used if the server has compression set too
+    private Compression compression = null;
+    //a lock rather than synchronized, so a virtual thread waiting for it doesn't pin its carrier
+    final private ReentrantLock outputStreamLock = new ReentrantLock();
+    
+    //writes the queued messages of all clients of the JVM. a thread is only taken while a client has something to write
+    private static ExecutorService writerPool, virtualWriterPool;
+    private boolean virtualThreads = false;
+    //runs the heartbeat of all clients of the JVM
+    private static TimerWheel timer;
+    private int maxBatchBytes = OutboundQueue.DEFAULT_MAX_BATCH_BYTES;
+    private long maxBatchDelay = 0;
 
     AtomicBoolean isAlive = new AtomicBoolean(false);
     private boolean heartbeat = true;
@@ -40,58 +83,126 @@ public class Client {
     
     private ReentrantLock callDisconnectedOnlyOnce = new ReentrantLock();
     private volatile boolean disconnectCalled=false;
+    //told when the client is disconnected for good, after autoconnect gave up. set by ClientPool
+    volatile Runnable disconnectListener = null;
+    
+    //the token of the session given by the server, sent back to resume the session on reconnection
+    private volatile String sessionId = null;
+    
+    //keeps the messages that couldn't be sent, they are sent again after the next connection. null keeps none
+    private volatile Outbox outbox = null;
+    private static final String OUTBOX_KEY = "server";
+    
+    //topics subscribed to, subscribed again on every connection
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
     
-    private Thread readerThread,connCheckThread;
+    //calls waiting for their reply, by correlation id
+    private final ConcurrentHashMap<Long, CompletableFuture<Message>> calls = new ConcurrentHashMap<>();
+    private final AtomicLong nextCallId = new AtomicLong();
+    private long callTimeout = Constants.CALL_TIMEOUT;
+    
+    //streams from the server by tag, and the streams being received and sent on the connection
+    private final ConcurrentHashMap<String, StreamHandler<Client>> streamHandlers = new ConcurrentHashMap<>();
+    private volatile IncomingStreams incomingStreams = new IncomingStreams();
+    private final Set<OutgoingStream> outgoingStreams = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextStreamId = new AtomicLong();
+    
+    private Thread readerThread;
+    private Heartbeat heartbeatTask;
     private Runnable readerRunnable = new Runnable(){
         @Override
         public void run(){
             while(connected){
                 try {
-                    if(socket.getInputStream().available()>0){
-                        //isAlive.set(true);
-                        connCheckThread.interrupt();
-                        Message msg = (Message) inputStream.readObject();
-                        String tag = msg.getTag();
-                        log("[CLIENT] Msg from server - TAG = "+tag);
-                        if(tag.equals(Constants.PING)){
+                    //blocks until a whole frame has arrived. stop() closes the socket to wake it up
+                    int header = frameReader.next();
+                    //isAlive.set(true);
+                    if(heartbeatTask!=null)heartbeatTask.touch();
+                    if(FrameCodec.isChunk(header)){
+                        incomingStreams.chunk(frameReader.buffer(), frameReader.bodyOffset(), frameReader.bodyLength());
+                        continue;
+                    }
+                    Message msg;
+                    try {
+                        msg = codec.decode(frameReader.buffer(), frameReader.bodyOffset(), frameReader.bodyLength(), FrameCodec.isCompressed(header));
+                    } catch (ProtocolException ex) {
+                        Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
+                        if(connected)connectionLost();
+                        return;
+                    } catch (IOException ex) {
+                        //a malformed message in a whole frame, the connection can go on
+                        Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
+                        continue;
+                    } catch (ClassNotFoundException ex) {
+                        //ignore the message
+                        continue;
+                    }
+                    String tag = msg.getTag();
+                    Log.trace("[CLIENT] Msg from server - TAG = {}", tag);
+                    if(msg.isReply()){
+                        CompletableFuture<Message> call = calls.get(msg.getCorrelationId());
+                        //runs the dependent stages of the future on this thread
+                        if(call!=null)call.complete(msg);
+                        //a reply to a call that timed out or was cancelled isn't for the actions
+                        else Log.trace("[CLIENT] Dropped a late reply - TAG = {}", tag);
+                        continue;
+                    }
+                    int tagId = msg.getTagId();
+                    //codecs without tag ids leave it to be looked up
+                    if(tagId==0)tagId = tags.idOf(tag);
+                    switch(tagId){
+                        case TagTable.PING:
                             sendData(Constants.PONG,"I am connected!");
-                        } else if(tag.equals(Constants.PONG)){
-                            connCheckThread.interrupt();
-                        } else {                            
-                            Action action = getAction(tag);
+                            break;
+                        case TagTable.PONG:
+                            //nothing to do, receiving it was enough
+                            break;
+                        case TagTable.TAGS:
+                            List<String> serverTags = TagTable.toTagList(msg.getData());
+                            if(serverTags!=null)peerTags.setAll(serverTags);
+                            break;
+                        case TagTable.COMPRESS:
+                            //the server compresses too
+                            if(compression!=null && msg.getData() instanceof Long){
+                                codec.setCompression(compression.agree((Long)msg.getData()));
+                            }
+                            break;
+                        case TagTable.STREAM:
+                            incomingStreams.open(Client.this, msg.getData(), streamHandlers);
+                            break;
+                        case TagTable.SESSION:
+                            if(!(msg.getData() instanceof String))break;
+                            String token = (String)msg.getData();
+                            boolean resumed = token.equals(sessionId);
+                            sessionId = token;
+                            if(resumed)onSessionResumed();
+                            break;
+                        default:
+                            Action action = actions.get(tagId);
                             if(action!=null)action.execute(Client.this, msg);
-                        }
                     }
+                } catch (EOFException | SocketException ex) {
+                    //closed by the server, or by stop()
+                    if(connected)connectionLost();
+                    return;
                 } catch (IOException ex) {
+                    if(!connected)return;
                     Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (ClassNotFoundException ex) {
-                    //guarantee it will never occur
                 }
             }
         }
     };
     
-    Runnable connCheckRunnable = new Runnable() {
+    private final Heartbeat.Peer heartbeatPeer = new Heartbeat.Peer() {
         @Override
-        public void run() {
-            while(connected){
-                try {
-                    spuriousSafeSleep(pingInterval);
-                    sendDataEx(Constants.PING, "Are you alive?");
-                    spuriousSafeSleep(pongTimeout);
-                    log("[CLIENT] Pong timeout");
-                    disconnected();                    
-                } catch (InterruptedException ex) {
-                    //isAlive.set(false);
-                    if(connected==false){   //if connected is false it means some sendData method found an exception and thus the connection is broken
-                        disconnected();
-                        return;
-                    }
-                } catch (IOException ex) {
-                    disconnected();
-                    return;
-                }
-            }
+        public void sendPing() throws IOException {
+            sendDataEx(Constants.PING, "Are you alive?");
+        }
+        
+        @Override
+        public void pongTimedOut() {
+            Log.info("[CLIENT] Pong timeout");
+            connectionLost();
         }
     };
     public Client(String hostname,int port){
@@ -111,9 +222,9 @@ public class Client {
     
     public void start(){
         try {
-            log("[CLIENT] Connecting to server...");
+            Log.info("[CLIENT] Connecting to server...");
             startEx();
-            log("[CLIENT] Connected to server");
+            Log.info("[CLIENT] Connected to server");
         } catch (IOException ex) {
             disconnected();
         }
@@ -123,28 +234,88 @@ public class Client {
         if(connected)return;
         socket = new Socket(hostname, port);
         
-        synchronized(outputStreamLock){
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
-            inputStream = new ObjectInputStream(socket.getInputStream());            
+        outputStreamLock.lock();
+        try {
+            //a fresh codec for every connection, the server starts a new stream too.
+            //the ids of the server are only known after its TAGS message, until then tags are sent as strings
+            peerTags = new TagTable();
+            codec = new FrameCodec(messageCodec, tags, peerTags);
+            codec.setDecompression(compression);
+            incomingStreams = new IncomingStreams();
+            final Socket connection = socket;
+            outbound = new OutboundQueue(socket.getOutputStream(), writerPool(virtualThreads), maxBatchBytes, maxBatchDelay, (unsent, cause)->{
+                for(Message msg:unsent){
+                    sendingFailed(msg);
+                }
+                //ignore failures of a connection that was stopped or already replaced
+                if(connection==socket && connected)connectionLost();
+            });
+            frameReader = new FrameReader(socket.getInputStream());            
+        } finally {
+            outputStreamLock.unlock();
         }
         connected=true;
         disconnectCalled=false;
+        //first messages of every connection, the server answers with its tag ids and the token of the session
+        sendData(Constants.TAGS, tags.toList());
+        if(compression!=null)sendData(Constants.COMPRESS, compression.getDictionaryId());
+        sendData(Constants.RESUME, sessionId);
+        for(String topic:subscriptions){
+            sendData(Constants.SUBSCRIBE, topic);
+        }
+        if(outbox!=null){
+            for(Message msg:outbox.drain(OUTBOX_KEY)){
+                sendData(msg.getTag(), msg.getData());
+            }
+        }
         onConnect();
 
-        readerThread = new Thread(readerRunnable);
-        connCheckThread = new Thread(connCheckRunnable);
+        readerThread = Threads.factory("ClientReader", virtualThreads, false).newThread(readerRunnable);
         readerThread.start();
-        if(heartbeat)connCheckThread.start();
+        if(heartbeat){
+            heartbeatTask = new Heartbeat(timer(), pingInterval, pongTimeout, heartbeatPeer);
+            heartbeatTask.start();
+        }
     }
     
     final public void setAction(String tag, Action action) throws Exception {
-        if (tag.equals(Constants.PING) || tag.equals(Constants.PONG) || actions.containsKey(tag)) {
+        if (TagTable.isReserved(tag) || !actions.add(tag, action)) {
             throw new Exception("Action already exists!");
-        } else {
-            actions.put(tag, action);
         }
     }
     
+    /**
+     * Sets the Action of the tag in place of the one it has, if any.
+     * @param tag
+     * @param action
+     * @return The previous Action of the tag, null if it had none
+     * @throws IllegalArgumentException If the tag is reserved
+     */
+    final public Action replaceAction(String tag, Action action) {
+        if (TagTable.isReserved(tag)) throw new IllegalArgumentException("Reserved tag " + tag);
+        return actions.replace(tag, action);
+    }
+    
+    /**
+     * Removes the Action of the tag, messages with the tag are ignored from then on.
+     * @param tag
+     * @return The removed Action, null if the tag had none
+     */
+    final public Action removeAction(String tag) {
+        return actions.remove(tag);
+    }
+    
+    /**
+     * Sets what receives the streams the server sends with the tag, see ClientHandler.sendFile.
+     * Stream tags are separate from the tags of Actions.
+     * @param tag
+     * @param handler null to ignore the streams with the tag
+     */
+    final public void setStreamHandler(String tag, StreamHandler<Client> handler) {
+        if (handler == null) streamHandlers.remove(tag);
+        else streamHandlers.put(tag, handler);
+    }
+    
     public final Action getAction(String tag){
         return actions.get(tag);
     }
@@ -152,61 +323,233 @@ public class Client {
     public void sendDataEx(String tag, Object data) throws IOException {
         Message msg = new Message(tag, data);
         if(!connected){
-            onMsgSendingFailed(msg);
+            sendingFailed(msg);
             return;
         }
         // else if connected, send message only then
-        synchronized(outputStreamLock){
-            outputStream.writeObject(msg);
+        send(msg);
+    }
+    
+    private void send(Message msg) throws IOException {
+        outputStreamLock.lock();
+        try {
+            PooledBuffer frame = codec.encodeBuffer(msg);
+            outbound.add(msg, frame.buffer(), frame, null);
+        } finally {
+            outputStreamLock.unlock();
+        }
+    }
+    
+    /**
+     * Sends a file to the server in chunks, which it receives with the StreamHandler it set
+     * for the tag, see Server.setStreamHandler. Only a couple of chunks are queued at a time,
+     * so messages sent meanwhile aren't held up by the transfer. The file must not change
+     * until the transfer is done. Streams are not resent after a reconnection.
+     * @param tag
+     * @param file
+     * @return Completed once the whole file has been written to the connection, or failed
+     * if the file couldn't be read or the connection was lost
+     */
+    public CompletableFuture<Void> sendFile(String tag, Path file) {
+        OutgoingStream stream;
+        try {
+            stream = new OutgoingStream(nextStreamId.incrementAndGet(), tag, file);
+        } catch (IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        return sendStream(stream);
+    }
+    
+    /**
+     * Same as sendFile, for a payload read from a stream until its end. The stream is read on
+     * the writer pool of the client and closed at the end.
+     * @param tag
+     * @param name Handed to the StreamHandler of the server
+     * @param in
+     * @param length The number of bytes, -1 if unknown. Only passed on to the StreamHandler.
+     * @return 
+     */
+    public CompletableFuture<Void> sendStream(String tag, String name, InputStream in, long length) {
+        return sendStream(new OutgoingStream(nextStreamId.incrementAndGet(), tag, name, in, length));
+    }
+    
+    private CompletableFuture<Void> sendStream(OutgoingStream stream) {
+        final OutboundQueue queue;
+        outputStreamLock.lock();
+        try {
+            if(!connected) throw new SocketException("Not connected");
+            //the chunks go to this connection only, a reconnection doesn't resume the stream
+            queue = outbound;
+            Message open = stream.getOpenMessage();
+            PooledBuffer frame = codec.encodeBuffer(open);
+            queue.add(open, frame.buffer(), frame, null);
+        } catch (IOException ex) {
+            stream.abort(ex);
+            return stream.getFuture();
+        } finally {
+            outputStreamLock.unlock();
+        }
+        outgoingStreams.add(stream);
+        stream.getFuture().whenComplete((v, ex)->outgoingStreams.remove(stream));
+        //checked again, the connection may have been lost before the stream was added
+        if(!connected) stream.abort(new SocketException("Connection closed"));
+        stream.start((PooledBuffer frame, FileChannel file, long position, int length, Runnable onWritten)->{
+            queue.add(null, frame.buffer(), frame, onWritten);
+        }, writerPool(virtualThreads), false);
+        return stream.getFuture();
+    }
+    
+    /**
+     * Sends a request and returns a future completed with the server's reply, sent with
+     * ClientHandler.reply(). Any number of calls may be in flight on the connection.
+     * The future fails with a TimeoutException if no reply arrives within the default call
+     * timeout, and with a SocketException if the connection is lost first.
+     * The future is completed on the reader thread, dependent stages must not block.
+     * @param tag
+     * @param data
+     * @return 
+     */
+    public CompletableFuture<Message> call(String tag, Object data) {
+        return call(tag, data, callTimeout);
+    }
+    
+    /**
+     * Same as call(tag, data), with a timeout for this call.
+     * @param tag
+     * @param data
+     * @param timeout_ms
+     * @return 
+     */
+    public CompletableFuture<Message> call(String tag, Object data, long timeout_ms) {
+        final long id = nextCallId.incrementAndGet();
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        if(!connected){
+            future.completeExceptionally(new SocketException("Not connected"));
+            return future;
         }
+        calls.put(id, future);
+        final TimerWheel.Timeout timeout = timer().schedule(()->{
+            future.completeExceptionally(new TimeoutException("No reply to "+tag+" within "+timeout_ms+"ms"));
+        }, timeout_ms);
+        future.whenComplete((reply, ex)->{
+            timeout.cancel();
+            calls.remove(id);
+        });
+        try {
+            send(new Message(tag, data, id, false));
+        } catch (SocketException ex) {
+            future.completeExceptionally(ex);
+            connectionLost();
+        } catch (IOException ex) {
+            //the message could not be encoded
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+    
+    /**
+     * Subscribes to a topic of the server. Messages published to the topic arrive with the
+     * name of the topic as their tag, use setAction(topic, action) to receive them.
+     * The subscription is renewed when the client reconnects.
+     * @param topic 
+     */
+    public void subscribe(String topic){
+        if(subscriptions.add(topic) && connected)sendData(Constants.SUBSCRIBE, topic);
+    }
+    
+    public void unsubscribe(String topic){
+        if(subscriptions.remove(topic) && connected)sendData(Constants.UNSUBSCRIBE, topic);
+    }
+    
+    /**
+     * Sets the timeout of call(tag, data). Defaults to 30 seconds.
+     * @param timeout_ms 
+     */
+    public void setCallTimeout(long timeout_ms){
+        this.callTimeout=timeout_ms;
+    }
+    
+    /**
+     * @return The number of calls waiting for their reply
+     */
+    public int getCallsInFlight(){
+        return calls.size();
+    }
+    
+    //the replies of the calls in flight can't arrive anymore, nor the rest of the streams
+    private void failCalls(){
+        SocketException closed = new SocketException("Connection closed");
+        for(CompletableFuture<Message> call:calls.values()){
+            call.completeExceptionally(closed);
+        }
+        for(OutgoingStream stream:outgoingStreams){
+            stream.abort(closed);
+        }
+        incomingStreams.abortAll(closed);
     }
     
     public void sendData(String tag, Object data) {
         Message msg = new Message(tag, data);
         if(!connected){
-            onMsgSendingFailed(msg);
+            sendingFailed(msg);
             return;
         }
-        //else if connected, send message only then
-        synchronized(outputStreamLock){
-            try {
-                outputStream.writeObject(msg);
-            } catch (SocketException ex) {
-                onMsgSendingFailed(msg);
-                connected=false;
-                connCheckThread.interrupt();
-                if(!heartbeat){
-                    //do this only when heartbeat is disabled i.e. no other thread
-                    //exists to take care of disconnection
-                    
-                    //call the disconnected method only once from all threads
-                    if(callDisconnectedOnlyOnce.tryLock()){//try obtaining a lock
-                        //if lock was obtained, call disconnected() in another thread
-                        new Thread(()->{disconnected();}).start();
-                        //set the flag to true so as after releasing lock, if other
-                        //thread acquire lock, they won't call this method again
-                        //the flag is reset after reconnection
-                        disconnectCalled = true;
-                        callDisconnectedOnlyOnce.unlock();
-                    }
-                }
-
-            } catch (IOException ex) {
-                Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
-            } 
+        //else if connected, queue the message only then
+        try {
+            send(msg);
+        } catch (SocketException ex) {
+            sendingFailed(msg);
+            connectionLost();
+        } catch (IOException ex) {
+            //the message could not be encoded
+            Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
         } 
     }
     
     
     
-    private void spuriousSafeSleep(int ms) throws InterruptedException{
-        long startTime = System.nanoTime();
-        long curTime = startTime;
-        while((curTime-startTime)/1000000<ms){
-            Thread.sleep(ms-((curTime-startTime)/1000000));   
-            curTime=System.nanoTime();
+    //called when a read, a write or the heartbeat finds the connection broken
+    private void connectionLost(){
+        connected=false;
+        if(heartbeatTask!=null)heartbeatTask.stop();
+        failCalls();
+            
+        //call the disconnected method only once from all threads
+        if(callDisconnectedOnlyOnce.tryLock()){//try obtaining a lock
+            if(!disconnectCalled){
+                //if lock was obtained, call disconnected() in another thread
+                //as it may keep reconnecting for a long time
+                Threads.factory("ClientReconnect", virtualThreads, false).newThread(()->{disconnected();}).start();
+                //set the flag to true so as after releasing lock, if other
+                //thread acquire lock, they won't call this method again
+                //the flag is reset after reconnection
+                disconnectCalled = true;
+            }
+            callDisconnectedOnlyOnce.unlock();
         }
-        
+    }
+    
+    static synchronized TimerWheel timer(){
+        if(timer==null)timer = new TimerWheel("ClientTimer", 10, 512, true);
+        return timer;
+    }
+    
+    private static synchronized ExecutorService writerPool(boolean virtual){
+        if(virtual && Threads.isVirtualSupported()){
+            if(virtualWriterPool==null)virtualWriterPool = Threads.newCachedPool("ClientWriter", true, true);
+            return virtualWriterPool;
+        }
+        if(writerPool==null)writerPool = Threads.newCachedPool("ClientWriter", false, true);
+        return writerPool;
+    }
+    
+    //called instead of onMsgSendingFailed, keeps the message to send it again after reconnecting
+    private void sendingFailed(Message msg){
+        //the reserved messages belong to a connection, calls have already failed
+        if(outbox!=null && !TagTable.isReserved(msg.getTag()) && msg.getCorrelationId()==0)outbox.store(OUTBOX_KEY, msg);
+        onMsgSendingFailed(msg);
     }
     
     protected void onMsgSendingFailed(Message msg){
@@ -221,54 +564,87 @@ public class Client {
         //must be overridden
     }
     
+    /**
+     * Called after a reconnection when the server still had the session of this client.
+     * Messages the server could not deliver while the client was away follow right after.
+     * When the session has timed out, the client gets a new one and this method isn't called.
+     */
+    protected void onSessionResumed(){
+        //may be overridden
+    }
+    
+    /**
+     * Sets where the messages that couldn't be sent are kept until the client is connected
+     * again, they are then sent before anything else. None are kept by default.
+     * onMsgSendingFailed is still called for the kept messages, so it must not send them
+     * again as well.
+     * @param outbox 
+     */
+    public void setOutbox(Outbox outbox){
+        this.outbox=outbox;
+    }
+    
+    /**
+     * @return The token of the session given by the server, null before the first connection
+     */
+    public String getSessionId(){
+        return sessionId;
+    }
+    
     private void disconnected(){
         //code to execute when client disconnects from the server
-        log("[CLIENT] Disconnected...");
+        Log.info("[CLIENT] Disconnected...");
         onDisconnect();
         connected=false;
+        if(heartbeatTask!=null)heartbeatTask.stop();
         try {
-            if(readerThread!=null)readerThread.join();
+            //releases the reader thread from its blocking read
+            if(socket!=null)socket.close();
+            if(readerThread!=null && Thread.currentThread()!=readerThread)readerThread.join();
+        } catch (IOException ex) {
         } catch (InterruptedException ex) {
             Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
         }
         if(autoconnect){
             for(int tries=0;(maxTries<0)||tries<maxTries;tries=(maxTries>0)?tries+1:tries){
                 try {
-                    log("[CLIENT] Reconnecting...");
+                    Log.info("[CLIENT] Reconnecting...");
                     startEx();
                     break;
                 } catch (IOException ex) {
-                    log("[CLIENT] Failed to reconnect | Tries - "+(tries+1));
+                    Log.info("[CLIENT] Failed to reconnect | Tries - {}", tries+1);
                 }
             }
         }
+        Runnable listener = disconnectListener;
+        if(!connected && listener!=null)listener.run();
     }
     
     public void testDisconnect(){
-        connected=false;
-        connCheckThread.interrupt();
+        connectionLost();
     }
     
     public final void stop(){
         //code to stop 
         if(!connected) return;
-        log("[CLIENT] Stopping client...");
+        Log.info("[CLIENT] Stopping client...");
         boolean bkup=autoconnect;
         autoconnect=false;
         connected=false;
-        connCheckThread.interrupt();
+        if(heartbeatTask!=null)heartbeatTask.stop();
+        failCalls();
         try {
+            //closing the socket releases the reader thread from its blocking read
+            socket.close();
             try {
                 readerThread.join();
-                connCheckThread.join();
             } catch (NullPointerException ex) {
             }
-            socket.close();
         } catch (IOException ex) {
         } catch (InterruptedException ex) {
         }
         autoconnect=bkup;
-        log("[CLIENT] Client Stopped!");
+        Log.info("[CLIENT] Client Stopped!");
     }
     
     public boolean isConnected(){
@@ -279,8 +655,46 @@ public class Client {
         return socket.getLocalPort();
     }
     
+    /**
+     * Sets the codec used to encode and decode messages. It must be the same as the server's.
+     * BinaryCodec is used by default. Takes effect from the next connection.
+     * @param codec 
+     */
+    public void setCodec(MessageCodec codec){
+        this.messageCodec=codec;
+    }
+    
+    /**
+     * Compresses large messages if the server has compression set too, see Compression.
+     * Off by default. Takes effect from the next connection.
+     * @param compression null to turn compression off
+     */
+    public void setCompression(Compression compression){
+        this.compression=compression;
+    }
+    
+    /**
+     * Configures how queued messages are coalesced into writes. Takes effect from the next connection.
+     * @param maxBatchBytes The connection is flushed whenever this many bytes have been written
+     * @param maxDelayMicros How long the writer waits for more messages before writing a batch
+     * smaller than maxBatchBytes. 0, the default, writes right away.
+     */
+    public void setWriteBatching(int maxBatchBytes, long maxDelayMicros){
+        this.maxBatchBytes=maxBatchBytes;
+        this.maxBatchDelay=maxDelayMicros;
+    }
+    
     public void disableHeartbeat(){
         heartbeat=false;
     }
             
+    /**
+     * Runs the reader, the writer and the reconnecting of this client on virtual threads.
+     * Requires JDK 21 or later, on older JVMs platform threads are used as before.
+     * Takes effect from the next connection.
+     */
+    public void useVirtualThreads(){
+        virtualThreads=true;
+    }
+            
 }
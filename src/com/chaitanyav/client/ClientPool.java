@@ -0,0 +1,279 @@
+package com.chaitanyav.client;
+
+import com.chaitanyav.Message;
+import com.chaitanyav.StreamHandler;
+import com.chaitanyav.TagTable;
+import com.chaitanyav.Threads;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Several connections to one Server, used as one. Every Client has a socket and an output
+ * lock of its own, so threads sending through the pool don't all wait for one connection and
+ * the server reads them on as many threads. Each message or call goes to the connection the
+ * LoadBalancer chooses, so messages sent one after another may arrive out of order.
+ * A connection is used while it is connected, which the heartbeat of its Client checks, and
+ * the pool reconnects it when it is lost. Safe to share across threads.
+ * @author Chaitanya V
+ */
+public class ClientPool {
+    public static final long DEFAULT_RECONNECT_INTERVAL = 1000;
+
+    private final String hostname;
+    private final int port;
+    private final int size;
+    private final LoadBalancer balancer;
+    private long reconnectInterval = DEFAULT_RECONNECT_INTERVAL;
+    //set on every client when the pool starts, and on every client when set after
+    private final Map<String, Action> actions = new ConcurrentHashMap<>();
+    private final Map<String, StreamHandler<Client>> streamHandlers = new ConcurrentHashMap<>();
+    private volatile Client[] clients = new Client[0];
+    private volatile boolean running = false;
+
+    public ClientPool(String hostname, int port, int size) {
+        this(hostname, port, size, new RoundRobinBalancer());
+    }
+
+    /**
+     * @param hostname
+     * @param port
+     * @param size The number of connections
+     * @param balancer Chooses the connection of every message and call
+     */
+    public ClientPool(String hostname, int port, int size, LoadBalancer balancer) {
+        this.hostname = hostname;
+        this.port = port;
+        this.size = Math.max(size, 1);
+        this.balancer = balancer;
+    }
+
+    /**
+     * Creates the client of each connection when the pool starts. Override to configure them,
+     * for example with setCodec, setCompression or setWriteBatching. The clients must not be
+     * set to autoconnect, the pool reconnects them itself.
+     * @param hostname
+     * @param port
+     * @return A client that isn't started
+     */
+    protected Client newClient(String hostname, int port) {
+        return new Client(hostname, port);
+    }
+
+    /**
+     * Sets how long the pool waits before connecting a lost connection again, and between
+     * attempts while the server can't be reached. Defaults to 1 second.
+     * @param interval_ms
+     */
+    public void setReconnectInterval(long interval_ms) {
+        this.reconnectInterval = interval_ms;
+    }
+
+    /**
+     * Sets the Action of the tag on every connection, a message from the server may arrive on
+     * any of them.
+     * @param tag
+     * @param action
+     * @throws Exception If the tag already has an Action or is reserved
+     */
+    public final void setAction(String tag, Action action) throws Exception {
+        if (TagTable.isReserved(tag) || actions.putIfAbsent(tag, action) != null) {
+            throw new Exception("Action already exists!");
+        }
+        try {
+            for (Client client : clients) {
+                client.setAction(tag, action);
+            }
+        } catch (Exception ex) {
+            actions.remove(tag);
+            throw ex;
+        }
+    }
+
+    /**
+     * Sets the StreamHandler of the tag on every connection.
+     * @param tag
+     * @param handler null to ignore the streams with the tag
+     */
+    public final void setStreamHandler(String tag, StreamHandler<Client> handler) {
+        if (handler == null) streamHandlers.remove(tag);
+        else streamHandlers.put(tag, handler);
+        for (Client client : clients) {
+            client.setStreamHandler(tag, handler);
+        }
+    }
+
+    /**
+     * Connects every client of the pool. Clients that can't connect are tried again every
+     * reconnect interval until the pool is stopped.
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        Client[] created = new Client[size];
+        for (int i = 0; i < size; i++) {
+            Client client = newClient(hostname, port);
+            for (Map.Entry<String, Action> action : actions.entrySet()) {
+                client.replaceAction(action.getKey(), action.getValue());
+            }
+            for (Map.Entry<String, StreamHandler<Client>> handler : streamHandlers.entrySet()) {
+                client.setStreamHandler(handler.getKey(), handler.getValue());
+            }
+            client.disconnectListener = () -> scheduleReconnect(client);
+            created[i] = client;
+        }
+        clients = created;
+        for (Client client : created) {
+            client.start();
+        }
+    }
+
+    /**
+     * Stops every client of the pool. Calls in flight fail with a SocketException.
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        for (Client client : clients) {
+            client.stop();
+        }
+    }
+
+    //the connecting blocks, so it runs on a thread of its own rather than on the timer
+    private void scheduleReconnect(Client client) {
+        if (!running) return;
+        Client.timer().schedule(() -> {
+            if (!running) return;
+            Threads.factory("ClientPoolReconnect", false, false).newThread(() -> {
+                //a failed attempt schedules the next one through the disconnect listener
+                client.start();
+                if (!running) client.stop();
+            }).start();
+        }, reconnectInterval);
+    }
+
+    /**
+     * @return The connection the next message would be sent on, null if none is connected
+     */
+    public Client select() {
+        return balancer.select(clients);
+    }
+
+    /**
+     * Sends the message on the connection chosen by the LoadBalancer. When no connection is
+     * connected, the message is kept in the outbox of the first client and sent once it is
+     * connected again.
+     * @param tag
+     * @param data
+     */
+    public void sendData(String tag, Object data) {
+        Client[] all = clients;
+        if (all.length == 0) return;
+        Client client = balancer.select(all);
+        if (client == null) client = all[0];
+        client.sendData(tag, data);
+    }
+
+    /**
+     * Same as sendData, throwing when no connection is connected.
+     * @param tag
+     * @param data
+     * @throws IOException
+     */
+    public void sendDataEx(String tag, Object data) throws IOException {
+        Client client = select();
+        if (client == null) throw new SocketException("Not connected");
+        client.sendDataEx(tag, data);
+    }
+
+    /**
+     * Sends a request on the connection chosen by the LoadBalancer, see Client.call.
+     * @param tag
+     * @param data
+     * @return A future completed with the reply, failed with a SocketException if no
+     * connection is connected
+     */
+    public CompletableFuture<Message> call(String tag, Object data) {
+        Client client = select();
+        if (client == null) return notConnected();
+        return client.call(tag, data);
+    }
+
+    /**
+     * Same as call(tag, data), with a timeout for this call.
+     * @param tag
+     * @param data
+     * @param timeout_ms
+     * @return
+     */
+    public CompletableFuture<Message> call(String tag, Object data, long timeout_ms) {
+        Client client = select();
+        if (client == null) return notConnected();
+        return client.call(tag, data, timeout_ms);
+    }
+
+    /**
+     * Sends a file on the connection chosen by the LoadBalancer, see Client.sendFile.
+     * @param tag
+     * @param file
+     * @return
+     */
+    public CompletableFuture<Void> sendFile(String tag, Path file) {
+        Client client = select();
+        if (client == null) return notConnected();
+        return client.sendFile(tag, file);
+    }
+
+    /**
+     * Sends a stream on the connection chosen by the LoadBalancer, see Client.sendStream.
+     * @param tag
+     * @param name
+     * @param in
+     * @param length
+     * @return
+     */
+    public CompletableFuture<Void> sendStream(String tag, String name, InputStream in, long length) {
+        Client client = select();
+        if (client == null) return notConnected();
+        return client.sendStream(tag, name, in, length);
+    }
+
+    private static <T> CompletableFuture<T> notConnected() {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new SocketException("Not connected"));
+        return failed;
+    }
+
+    /**
+     * @return The clients of the pool, empty before it is started. For what the pool doesn't
+     * do itself, such as subscribing one connection to a topic.
+     */
+    public List<Client> getClients() {
+        return Collections.unmodifiableList(Arrays.asList(clients));
+    }
+
+    /**
+     * @return The number of connections that are connected
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (Client client : clients) {
+            if (client.isConnected()) count++;
+        }
+        return count;
+    }
+
+    public boolean isConnected() {
+        for (Client client : clients) {
+            if (client.isConnected()) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,31 @@
+package com.chaitanyav.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the connected client of a ClientPool with the fewest calls waiting for their reply,
+ * so a connection held up by slow requests gets fewer new ones. Clients with as many calls
+ * are taken in turn, messages sent without a reply don't count.
+ * @author Chaitanya V
+ */
+public final class LeastInFlightBalancer implements LoadBalancer {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public Client select(Client[] clients) {
+        int start = next.getAndIncrement();
+        Client best = null;
+        int fewest = Integer.MAX_VALUE;
+        for (int i = 0; i < clients.length; i++) {
+            Client client = clients[Math.floorMod(start + i, clients.length)];
+            if (!client.isConnected()) continue;
+            int calls = client.getCallsInFlight();
+            if (calls < fewest) {
+                best = client;
+                fewest = calls;
+                if (calls == 0) break;
+            }
+        }
+        return best;
+    }
+}
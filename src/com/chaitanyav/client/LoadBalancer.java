@@ -0,0 +1,15 @@
+package com.chaitanyav.client;
+
+/**
+ * Chooses the connection of a ClientPool each message or call is sent on, see
+ * RoundRobinBalancer and LeastInFlightBalancer. Called by every thread sending through the
+ * pool at the same time, so it must be thread safe, and shouldn't lock.
+ * @author Chaitanya V
+ */
+public interface LoadBalancer {
+    /**
+     * @param clients The clients of the pool, connected or not. The array must not be modified.
+     * @return A connected client, null if none is connected
+     */
+    Client select(Client[] clients);
+}
@@ -0,0 +1,22 @@
+package com.chaitanyav.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the connected clients of a ClientPool in turn, skipping the disconnected ones.
+ * The default of ClientPool, for requests that cost the server about the same.
+ * @author Chaitanya V
+ */
+public final class RoundRobinBalancer implements LoadBalancer {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public Client select(Client[] clients) {
+        int start = next.getAndIncrement();
+        for (int i = 0; i < clients.length; i++) {
+            Client client = clients[Math.floorMod(start + i, clients.length)];
+            if (client.isConnected()) return client;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,112 @@
+package com.chaitanyav.server;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded pool running the actions that require a separate thread.
+ * It has a maximum number of threads and a maximum number of queued actions. When both
+ * are used up the pool refuses new actions, and depending on the SaturationPolicy of the
+ * Server the ClientHandler stops reading from its client until the pool has room again.
+ * @author Chaitanya V
+ */
+final class ActionPool {
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    //selector transport clients waiting for room, resumed one per finished action
+    private final Queue<ClientHandler> waiting = new ConcurrentLinkedQueue<>();
+    //blocking transport readers waiting for room
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasRoom = lock.newCondition();
+    private final AtomicInteger blockedReaders = new AtomicInteger();
+
+    ActionPool(int maxThreads, int queueLimit, ThreadFactory factory) {
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueLimit, 1)), factory) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                actionFinished();
+            }
+        };
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return false if the pool is saturated, the action was not accepted then
+     */
+    boolean trySubmit(Runnable action) {
+        try {
+            executor.execute(action);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Blocks the calling reader thread for a while or until an action finishes.
+     */
+    void awaitRoom() throws InterruptedException {
+        blockedReaders.incrementAndGet();
+        lock.lock();
+        try {
+            if (!hasRoom()) hasRoom.await(100, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+            blockedReaders.decrementAndGet();
+        }
+    }
+
+    /**
+     * Resumes the handler from its event loop once the pool has room.
+     */
+    void resumeWhenRoom(ClientHandler hnd) {
+        waiting.add(hnd);
+        //the pool may have drained between the failed submit and now, then no action is left to resume it
+        if (hasRoom()) actionFinished();
+    }
+
+    private void actionFinished() {
+        ClientHandler hnd = waiting.poll();
+        if (hnd != null) hnd.resumeReading();
+        if (blockedReaders.get() > 0) {
+            lock.lock();
+            try {
+                hasRoom.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean hasRoom() {
+        return executor.getQueue().remainingCapacity() > 0 || executor.getActiveCount() < executor.getMaximumPoolSize();
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -1,15 +1,43 @@
 package com.chaitanyav.server;
 
+import com.chaitanyav.BufferPool;
+import com.chaitanyav.Compression;
 import com.chaitanyav.Constants;
+import com.chaitanyav.FrameCodec;
+import com.chaitanyav.FrameReader;
+import com.chaitanyav.Heartbeat;
+import com.chaitanyav.IncomingStreams;
+import com.chaitanyav.Log;
 import com.chaitanyav.Message;
+import com.chaitanyav.OutboundQueue;
+import com.chaitanyav.OutgoingStream;
+import com.chaitanyav.PooledBuffer;
+import com.chaitanyav.TagTable;
+import com.chaitanyav.WriteWatermarks;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,74 +47,95 @@ import java.util.logging.Logger;
  */
 public class ClientHandler {    
     final private Socket socket;
-    private ObjectInputStream inputStream=null;
-    private ObjectOutputStream outputStream=null;
+    private FrameReader frameReader=null;
+    //frames waiting to be written by the writer of the blocking transport
+    private OutboundQueue outbound=null;
+    private final FrameCodec codec;
+    //the tag ids of the client, received in its TAGS message
+    private final TagTable peerTags = new TagTable();
     private volatile boolean connected=true;
     private Server server;
-    private AtomicBoolean isActive = new AtomicBoolean();
+    //set by the first call to stop() or stopNonBlocking()
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    //the first reason the client was stopped for
+    private final AtomicReference<DisconnectReason> disconnectReason = new AtomicReference<>();
+    final private ConnectionMetrics metrics = new ConnectionMetrics();
+    //when the unanswered ping was sent, 0 if there is none
+    private volatile long pingSentAt = 0;
     private long disconnectTimeout=Constants.PING_INTERVAL;   //default 10 seconds i.e. 10000ms
     private long pongTimeout=Constants.PONG_TIMEOUT;   //ping latency in ms
     
-    final private ExecutorService sequentialExecutor = Executors.newSingleThreadExecutor();
+    //identifies the client among the clients of the server
+    final private long id;
     
+    //runs this client's actions that don't require a separate thread, in order, on the server's shared pool
+    final private SerialExecutor sequentialExecutor;
+    
+    //set by the session handshake of the client
+    private volatile Session session;
+    
+    //the topics this client is subscribed to, left when it disconnects
+    final private Set<String> topics = ConcurrentHashMap.newKeySet();
+    
+    //streams being received from and sent to this client, aborted when it disconnects
+    final private IncomingStreams incomingStreams = new IncomingStreams();
+    final private Set<OutgoingStream> outgoingStreams = ConcurrentHashMap.newKeySet();
+    final private AtomicLong nextStreamId = new AtomicLong();
+    
+    //selector transport. channel is null when the client is served by its own threads
+    final private SocketChannel channel;
+    private EventLoop eventLoop;
+    private SelectionKey selectionKey;
+    //taken from the pool when data arrives and given back once every frame in it was handled,
+    //so idle clients hold no buffer
+    private PooledBuffer readBuffer;
+    //encoded frames waiting for the event loop to write them
+    final private Queue<OutboundFrame> pendingWrites = new ConcurrentLinkedQueue<>();
+    //set when the event loop must drop the oldest frames before writing, see SlowConsumerPolicy.DROP_OLDEST
+    private volatile boolean dropOldestPending = false;
+    private int maxBatchBytes;
+    //the bytes queued for the client, of either transport
+    private WriteWatermarks watermarks;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private long maxQueuedBytes;
+    //held while a frame is encoded and queued, so frames are written in encoding order
+    //a lock rather than synchronized, so a virtual thread waiting for it doesn't pin its carrier
+    final private ReentrantLock outputLock = new ReentrantLock();
+    final private AtomicBoolean flushScheduled = new AtomicBoolean();
+    //only touched by the event loop thread
+    private boolean writeBlocked = false;
+    //set while reading is paused because the action pool was saturated, with the action that didn't fit
+    private boolean readPaused = false;
+    private Runnable pausedAction = null;
+    //the chunks of streams are written by the serial executor rather than the event loop, as
+    //receivers may block. reading is paused while too many bytes of chunks wait for it, which
+    //fills the socket and the window of the sending stream
+    private static final int MAX_PENDING_CHUNK_BYTES = 4 * OutgoingStream.CHUNK_BYTES;
+    private final AtomicLong pendingChunkBytes = new AtomicLong();
+    private volatile boolean chunksPaused = false;
     
     
     //pingpong machanism
     boolean heartbeat = true;
     
     //<editor-fold>
-    private Thread connCheckerThread;
-    //pingpong lock
-    private final Object connCheckerLock = new Object();
-    private Runnable r_connChecker = new Runnable() {
+    //checks the connection on the server's shared timer instead of a thread per client
+    private Heartbeat heartbeatTask;
+    private final Heartbeat.Peer heartbeatPeer = new Heartbeat.Peer() {
         @Override
-        public void run(){
-            while (ClientHandler.this.connected) {
-                    if (isActive.get()) {       //If some data was received in the past disconnectTimeout ms
-                        isActive.set(false);         //Then set it to false to check its TRUEness next time
-                        try {
-                            synchronized (connCheckerLock) {
-                                long startTime = System.nanoTime();
-                                long curTime = startTime;
-                                do { // Used to handle spurious wakeups
-                                    connCheckerLock.wait(disconnectTimeout - (curTime - startTime) / 1000000);   //waiting for 10000 ms
-                                    curTime = System.nanoTime();
-                                } while (curTime - startTime < disconnectTimeout*1000000L && !ClientHandler.this.isActive.get());
-                            }
-                        } catch (InterruptedException ex) {
-                            Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    } else {        //If no data has been received, then 
-                        try {
-                            //...msg to notify pinging client
-                            System.out.println("[SERVER] Pinging "+socket);
-                            sendDataEx(Constants.PING, "Are you alive?");       //send a PING to check if the client is alive or not
-                            synchronized (connCheckerLock) {
-                                long startTime = System.nanoTime();
-                                long curTime = startTime;
-                                while (curTime - startTime < pongTimeout*1000000L && !ClientHandler.this.isActive.get()) { // Used to handle spurious wakeups
-                                    connCheckerLock.wait(pongTimeout);   //waiting for pong timeout
-                                    curTime = System.nanoTime();
-                                }
-                            }
-                            if (!isActive.get()) {
-                                //client found disconnected
-                                stopNonBlocking();
-                            }
-                        } catch (SocketException ex) {
-                            //client found disconnected
-                            stopNonBlocking();
-                        } catch (InterruptedException | IOException ex) {
-                            Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    }
-                }
-                //...msg to notify disconnection
-                System.out.println("[SERVER] Client Disconnected - "+socket);
-            }
+        public void sendPing() throws IOException {
+            //...msg to notify pinging client
+            Log.debug("[SERVER] Pinging {}", socket);
+            pingSentAt = System.nanoTime();
+            sendDataEx(Constants.PING, "Are you alive?");       //send a PING to check if the client is alive or not
+        }
         
+        @Override
+        public void pongTimedOut() {
+            //client found disconnected
+            disconnect(DisconnectReason.HEARTBEAT_TIMEOUT);
+        }
     };
-    
     //</editor-fold>
     
     
@@ -97,34 +146,35 @@ public class ClientHandler {
         public void run(){
             while(connected){
                 try {
-                    if(socket.getInputStream().available()>0){
-                        Message msg = (Message) inputStream.readObject();
-                        System.out.println("[SERVER] Message. TAG = "+msg.getTag()+" | "+socket);
-                        
-                        isActive.set(true);
-                        synchronized (connCheckerLock) {
-                            connCheckerLock.notifyAll();
-                        }
-                        
-                        if(msg.getTag().equals(Constants.PING)){    //if client is checking connection
-                            server.executeAction(sequentialExecutor,()->{sendData(Constants.PONG, "Connection is alive!");}
-                                    , true);
-                        } else {    //if not connection checking message
-                            Action action = server.getAction(msg.getTag());
-                            if (action != null) {
-                                
-                                //execute action                                
-                                server.executeAction(sequentialExecutor,() -> {
-                                    action.execute(ClientHandler.this, msg);
-                                },action.requiresSeperateThread());
-
-                            } //else ignore
-                        }
+                    //blocks until a whole frame has arrived. stop() closes the socket to wake it up
+                    int header = frameReader.next();
+                    if(FrameCodec.isChunk(header)){
+                        onChunk(frameReader.buffer(), frameReader.bodyOffset(), frameReader.bodyLength());
+                        continue;
+                    }
+                    Message msg;
+                    try {
+                        msg = decode(frameReader.buffer(), frameReader.bodyOffset(), frameReader.bodyLength(), FrameCodec.isCompressed(header));
+                    } catch (ProtocolException ex) {
+                        Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
+                        disconnect(DisconnectReason.PROTOCOL_ERROR);
+                        return;
+                    } catch (IOException ex) {
+                        //a malformed message in a whole frame, ignored as by the event loop
+                        Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
+                        continue;
+                    } catch (ClassNotFoundException ex) {
+                        //ignore the message
+                        continue;
                     }
+                    if(!onMessage(msg))return;
+                } catch (EOFException | SocketException ex) {
+                    //closed by the client, or by stop()
+                    if(connected)disconnect(DisconnectReason.CLOSED);
+                    return;
                 } catch (IOException ex) {
+                    if(!connected)return;
                     Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (ClassNotFoundException ex) {
-                    //ignore the message
                 }
             }
         }
@@ -133,23 +183,47 @@ public class ClientHandler {
     
     public ClientHandler(Socket socket,Server server){
         this.socket=socket;
+        this.channel=socket.getChannel();
+        this.codec=new FrameCodec(server.getCodec(), server.getTags(), peerTags);
+        this.codec.setDecompression(server.getCompression());
+        this.sequentialExecutor=new SerialExecutor(server.getSequentialPool());
+        this.id=server.nextClientId();
         try{
             this.server=server;
             disconnectTimeout=server.getPingInterval();
             pongTimeout=server.getPongTimeout();
             heartbeat = server.isHeartbeatOn();
+            maxBatchBytes = server.getMaxBatchBytes();
+            slowConsumerPolicy = server.getSlowConsumerPolicy();
+            maxQueuedBytes = server.getMaxQueuedBytes();
+            watermarks = new WriteWatermarks(server.getLowWatermark(), server.getHighWatermark(),
+                    (writable)->server.onWritabilityChanged(ClientHandler.this, writable));
             
-            outputStream=new ObjectOutputStream(socket.getOutputStream());
-            inputStream=new ObjectInputStream(socket.getInputStream());
-            isActive.set(true);
             connected=true;
+            if(heartbeat){
+                heartbeatTask = new Heartbeat(server.getTimer(), disconnectTimeout, pongTimeout, heartbeatPeer);
+                heartbeatTask.start();
+            }
             
-            readerThread=new Thread(r_reader);
-            readerThread.setName("ReaderThread");
-            connCheckerThread = new Thread(r_connChecker);
-            connCheckerThread.setName("ConnCheckerThread");
-            readerThread.start();
-            if(heartbeat)connCheckerThread.start();
+            if(channel!=null){
+                //served by one of the server's event loops, no threads of its own
+                channel.configureBlocking(false);
+                eventLoop = server.nextEventLoop();
+                eventLoop.register(this);
+            } else {
+                outbound=new OutboundQueue(socket.getOutputStream(), server.getWriterPool(),
+                        maxBatchBytes, server.getMaxBatchDelay(), (unsent, cause)->{
+                    for(Message msg:unsent){
+                        server.sendingFailed(ClientHandler.this,msg);
+                    }
+                    if(connected)disconnect(DisconnectReason.WRITE_FAILED);
+                }, watermarks);
+                frameReader=new FrameReader(socket.getInputStream());
+
+                readerThread=server.getReaderFactory().newThread(r_reader);
+                readerThread.start();
+            }
+            server.addClient(this);
             server.onClientConnected(this);
         } catch (IOException ex) {
             Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
@@ -157,46 +231,319 @@ public class ClientHandler {
         }
     }
     
+    //decodes a received frame, counting it
+    private Message decode(ByteBuffer data, int offset, int length, boolean compressed) throws IOException, ClassNotFoundException{
+        long start = System.nanoTime();
+        Message msg = codec.decode(data, offset, length, compressed);
+        server.getMetrics().received(metrics, FrameCodec.HEADER_LENGTH+length, System.nanoTime()-start);
+        return msg;
+    }
+    
+    //called by the reader thread or the event loop for every received message
+    //returns false when no more messages must be read for now
+    private boolean onMessage(Message msg){
+        Log.trace("[SERVER] Message. TAG = {} | {}", msg.getTag(), socket);
+
+        if(heartbeatTask!=null)heartbeatTask.touch();
+
+        int tagId = msg.getTagId();
+        //codecs without tag ids leave it to be looked up
+        if(tagId==0)tagId = server.getTags().idOf(msg.getTag());
+        switch(tagId){
+            case TagTable.PING:    //if client is checking connection
+                //only queues the reply, no need for a pool thread
+                sendData(Constants.PONG, "Connection is alive!");
+                break;
+            case TagTable.PONG:
+                long sent = pingSentAt;
+                if(sent!=0){
+                    pingSentAt = 0;
+                    server.getMetrics().heartbeat(metrics, System.nanoTime()-sent);
+                }
+                break;
+            case TagTable.TAGS:
+                List<String> tags = TagTable.toTagList(msg.getData());
+                if(tags!=null)peerTags.copyFrom(server.internPeerTags(tags));
+                sendData(Constants.TAGS, server.getTags().toList());
+                break;
+            case TagTable.COMPRESS:
+                //the client compresses once it has the answer, this end from right after it.
+                //answered first, so the client never gets a compressed frame before the answer
+                Compression compression = server.getCompression();
+                if(compression!=null && msg.getData() instanceof Long){
+                    sendData(Constants.COMPRESS, compression.getDictionaryId());
+                    codec.setCompression(compression.agree((Long)msg.getData()));
+                }
+                break;
+            case TagTable.STREAM:
+                //opened before the first chunk is handed over. the event loop hands both to the serial executor
+                if(channel==null)incomingStreams.open(this, msg.getData(), server.getStreamHandlers());
+                else sequentialExecutor.execute(()->incomingStreams.open(this, msg.getData(), server.getStreamHandlers()));
+                break;
+            case TagTable.RESUME:
+                server.resumeSession(this, msg.getData() instanceof String ? (String)msg.getData() : null);
+                break;
+            case TagTable.SUBSCRIBE:
+                if(msg.getData() instanceof String)server.subscribe(this, (String)msg.getData());
+                break;
+            case TagTable.UNSUBSCRIBE:
+                if(msg.getData() instanceof String)server.unsubscribe(this, (String)msg.getData());
+                break;
+            default:    //if not connection checking message
+                Action action = server.getAction(tagId);
+                if (action != null) {
+                    ServerMetrics serverMetrics = server.getMetrics();
+                    ServerMetrics.TagMetrics tagMetrics = serverMetrics.tag(msg.getTag());
+                    tagMetrics.messagesIn.increment();
+                    long queuedAt = System.nanoTime();
+
+                    //execute action
+                    return server.executeAction(this,msg,() -> {
+                        long start = System.nanoTime();
+                        try {
+                            action.execute(ClientHandler.this, msg);
+                        } finally {
+                            serverMetrics.actionRan(tagMetrics, start-queuedAt, System.nanoTime()-start);
+                        }
+                    },action.requiresSeperateThread());
+
+                } //else ignore
+        }
+        return true;
+    }
+    
+    //called by the reader thread or the event loop for every chunk of a stream
+    //false when the event loop must stop reading until the serial executor caught up
+    private boolean onChunk(ByteBuffer body, int offset, int length){
+        if(heartbeatTask!=null)heartbeatTask.touch();
+        if(channel==null){
+            //the reader thread of the client may block, that slows down only this client
+            incomingStreams.chunk(body, offset, length);
+            return true;
+        }
+        //copied out of the read buffer, which is reused for the next frames
+        PooledBuffer copy = BufferPool.getDefault().acquire(length);
+        ByteBuffer view = body.duplicate();
+        view.limit(offset+length).position(offset);
+        copy.buffer().put(view).flip();
+        pendingChunkBytes.addAndGet(length);
+        boolean queued = sequentialExecutor.offer(()->{
+            try {
+                incomingStreams.chunk(copy.buffer(), 0, length);
+            } finally {
+                copy.release();
+                chunkDone(length);
+            }
+        });
+        if(!queued){
+            //disconnected, the streams were aborted
+            copy.release();
+            pendingChunkBytes.addAndGet(-length);
+            return true;
+        }
+        if(pendingChunkBytes.get()<=MAX_PENDING_CHUNK_BYTES)return true;
+        chunksPaused = true;
+        updateInterest();
+        //the executor may have caught up before it could see the flag
+        if(pendingChunkBytes.get()<=MAX_PENDING_CHUNK_BYTES/2)chunksPaused = false;
+        return !chunksPaused;
+    }
+    
+    //runs on the serial executor
+    private void chunkDone(int length){
+        if(pendingChunkBytes.addAndGet(-length)<=MAX_PENDING_CHUNK_BYTES/2 && chunksPaused){
+            eventLoop.execute(this::continueAfterChunks);
+        }
+    }
+    
+    /**
+     * Returns the id of this client, unique among the clients of the server.
+     * Server.getClient(id) finds the client while it is connected.
+     * @return The id
+     */
+    public final long getId(){
+        return id;
+    }
+    
+    /**
+     * Returns the session of this client. Set when the client has completed the session
+     * handshake, which it does right after connecting.
+     * @return The session or null
+     */
+    public final Session getSession(){
+        return session;
+    }
+    
+    final void setSession(Session session){
+        this.session=session;
+    }
+    
+    /**
+     * @return The counters of this client
+     */
+    public final ConnectionMetrics getMetrics(){
+        return metrics;
+    }
+    
+    /**
+     * @return false while more than the high watermark of bytes is queued for the client,
+     * see Server.setWriteBufferWatermarks
+     */
+    public final boolean isWritable(){
+        return watermarks.isWritable();
+    }
+    
+    /**
+     * @return The bytes queued for the client but not yet written
+     */
+    public final long getQueuedBytes(){
+        return watermarks.getQueuedBytes();
+    }
+    
+    /**
+     * @return Why this client was stopped, null while it is connected
+     */
+    public final DisconnectReason getDisconnectReason(){
+        return disconnectReason.get();
+    }
+    
+    //null while frames to this client aren't compressed
+    final Compression getCompression(){
+        return codec.getCompression();
+    }
+    
+    final TagTable getPeerTags(){
+        return peerTags;
+    }
+    
+    final SerialExecutor getSequentialExecutor(){
+        return sequentialExecutor;
+    }
+    
+    final Set<String> getTopics(){
+        return topics;
+    }
+    
+    /**
+     * Called when the action pool refused an action of this client. The client isn't read
+     * from until the action could be submitted, its messages wait in the socket meanwhile.
+     * @return true if the action was submitted, false if reading was paused and resumes later
+     */
+    final boolean awaitActionPool(Runnable action){
+        ActionPool pool = server.getActionPool();
+        if(channel==null){
+            //blocking transport, just hold the reader thread
+            try {
+                while(connected && !pool.trySubmit(action)){
+                    pool.awaitRoom();
+                }
+            } catch (InterruptedException ex) {
+                return false;
+            }
+            return connected;
+        }
+        //the event loop must not block. stop reading, the pool resumes this client when it has room
+        readPaused = true;
+        pausedAction = action;
+        updateInterest();
+        pool.resumeWhenRoom(this);
+        return false;
+    }
+    
+    //called by the action pool from any thread
+    final void resumeReading(){
+        if(channel!=null)eventLoop.execute(this::continueReading);
+    }
+
     
     final public void stop(){
+        disconnectReason.compareAndSet(null, DisconnectReason.STOPPED);
+        if(channel!=null){
+            //nothing to wait for, the event loop drops closed channels by itself
+            stopNonBlocking();
+            return;
+        }
+        if(!stopped.compareAndSet(false, true))return;
+        //...msg to notify disconnection
+        Log.info("[SERVER] Client Disconnected - {}", socket);
         connected=false;
+        if(heartbeatTask!=null)heartbeatTask.stop();
         try {
-            readerThread.join();
-            synchronized(connCheckerLock){
-                connCheckerLock.notifyAll();
-            }
-            connCheckerThread.join();
+            //closing the socket releases the reader thread from its blocking read
             socket.close();
+            if(readerThread!=null && Thread.currentThread()!=readerThread)readerThread.join();
         } catch (InterruptedException | IOException ex) {
         }
         
-        sequentialExecutor.shutdown();
-        if(server.isRunning()){
-            server.onClientDisconnected(this);
-            server.getClientList().remove(this);
-        }
+        disconnected();
     }
     
     final public void stopNonBlocking(){
+        disconnectReason.compareAndSet(null, DisconnectReason.STOPPED);
+        if(!stopped.compareAndSet(false, true))return;
+        //...msg to notify disconnection
+        Log.info("[SERVER] Client Disconnected - {}", socket);
         connected = false;
+        if(heartbeatTask!=null)heartbeatTask.stop();
         try {
             socket.close();
         } catch (IOException ex) {
         }
         
+        disconnected();
+    }
+    
+    //stops the client for the reason, unless it was already stopped for another one
+    private void disconnect(DisconnectReason reason){
+        disconnectReason.compareAndSet(null, reason);
+        stopNonBlocking();
+    }
+    
+    //runs a callback of the application. on the event loop it goes to the sequential executor
+    //of this client instead, or to the writer pool once that is shut down, so the other
+    //clients of the loop don't wait for the application
+    final void runCallback(Runnable callback){
+        if(channel==null || !eventLoop.inEventLoop())callback.run();
+        else if(!sequentialExecutor.offer(callback))server.getWriterPool().execute(callback);
+    }
+    
+    //called by the event loop when a callback threw while it handled this client
+    void callbackFailed(){
+        disconnect(DisconnectReason.CALLBACK_FAILED);
+    }
+    
+    private void disconnected(){
+        server.getMetrics().disconnected(getDisconnectReason());
+        //the buffers belong to the event loop thread
+        if(channel!=null)eventLoop.execute(this::releaseBuffers);
+        server.unsubscribeAll(this);
+        server.removeClient(this);
+        Session s = session;
+        if(s!=null)s.detach(this);
+        //the disconnection may be noticed on an event loop or on the timer of the heartbeats,
+        //which must not wait for the application. its callbacks follow the actions of this client
+        sequentialExecutor.execute(this::notifyDisconnected);
         sequentialExecutor.shutdown();
+    }
+    
+    private void notifyDisconnected(){
+        SocketException closed = new SocketException("Connection closed");
+        incomingStreams.abortAll(closed);
+        for(OutgoingStream stream:outgoingStreams){
+            stream.abort(closed);
+        }
         if (server.isRunning()) {
             server.onClientDisconnected(this);
-            server.getClientList().remove(this);
         }
     }
     
-    /*TWO Synchronized methods to send data to client*/
+    /*TWO methods to send data to client. both only queue the message, the connection's writer sends it*/
     /**
      * This method is used to send some data in form of Message object, to the client.
-     * In case of an IOException occurring while trying to write data to the client stream,
-     * this method throws that exception and neither does calls onMsgSendingFailed as opposed to
-     * sendData method.
+     * If the message can't be encoded or the connection is already known to be broken,
+     * this method throws an IOException and neither does calls onMsgSendingFailed as opposed to
+     * sendData method. Messages that were queued but fail while being written are still
+     * reported to onMsgSendingFailed.
      * Use - To deal with the IOException and message sending failure yourself.
      * @param tag
      * @param data
@@ -205,36 +552,198 @@ public class ClientHandler {
      */
     public final void sendDataEx(String tag, Object data) throws IOException {
         Message msg = new Message(tag, data);
-        synchronized(outputStream){
-            outputStream.writeObject(msg);
-        }
+        if(!connected) throw new SocketException("Connection closed");
+        enqueue(msg);
     }
     
     /**
      * This method is used to send some data in form of Message object, to the client.
+     * The message is queued and this method returns without waiting for the connection.
      * If an IOException occurs while writing data to the stream, the client is considered
-     * to be disconnected and this method then makes a call to onMsgSendingFailed and then 
-     * stops the ClientHandler for the client.
+     * to be disconnected, onMsgSendingFailed is called for every message that wasn't written
+     * and the ClientHandler for the client is stopped.
      * To deal with the SocketException yourself, use the method sendDataEx which throws the SocketException
      * @param tag
      * @param data
      * @param msg The Message object containing the message to be sent to the client
      */
     public final void sendData(String tag, Object data) {
-        Message msg = new Message(tag, data);
-        synchronized(outputStream){
-            try {
-                outputStream.writeObject(msg);
-            } catch (SocketException ex) {
-                server.onMsgSendingFailed(ClientHandler.this,msg);
-                stop();
-            } catch (IOException ex) {
-                Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
+        send(new Message(tag, data));
+    }
+    
+    /**
+     * Answers a message the client sent with Client.call(). The reply carries the
+     * correlation id of the request and completes the future returned by call().
+     * Failures are handled as in sendData.
+     * @param request The message being answered
+     * @param data 
+     */
+    public final void reply(Message request, Object data) {
+        send(new Message(request.getTag(), data, request.getCorrelationId(), true));
+    }
+    
+    /**
+     * Sends a file to the client in chunks, which it receives with the StreamHandler it set
+     * for the tag, see Client.setStreamHandler. Only a couple of chunks are queued at a time,
+     * so messages sent meanwhile aren't held up by the transfer. With the selector transport
+     * the file is sent with FileChannel.transferTo, without being copied through the heap.
+     * The file must not change until the transfer is done.
+     * @param tag
+     * @param file
+     * @return Completed once the whole file has been written to the connection, or failed
+     * if the file couldn't be read or the connection was lost
+     */
+    public final CompletableFuture<Void> sendFile(String tag, Path file) {
+        OutgoingStream stream;
+        try {
+            stream = new OutgoingStream(nextStreamId.incrementAndGet(), tag, file);
+        } catch (IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        return sendStream(stream);
+    }
+    
+    /**
+     * Same as sendFile, for a payload read from a stream until its end. The stream is read on
+     * the server's writer pool and closed at the end.
+     * @param tag
+     * @param name Handed to the StreamHandler of the client
+     * @param in
+     * @param length The number of bytes, -1 if unknown. Only passed on to the StreamHandler.
+     * @return 
+     */
+    public final CompletableFuture<Void> sendStream(String tag, String name, InputStream in, long length) {
+        return sendStream(new OutgoingStream(nextStreamId.incrementAndGet(), tag, name, in, length));
+    }
+    
+    private CompletableFuture<Void> sendStream(OutgoingStream stream) {
+        try {
+            if(!connected) throw new SocketException("Connection closed");
+            enqueue(stream.getOpenMessage());
+        } catch (IOException ex) {
+            stream.abort(ex);
+            return stream.getFuture();
+        }
+        outgoingStreams.add(stream);
+        stream.getFuture().whenComplete((v, ex)->outgoingStreams.remove(stream));
+        //checked again, disconnected() may have run before the stream was added
+        if(!connected) stream.abort(new SocketException("Connection closed"));
+        stream.start(this::enqueueChunk, server.getWriterPool(), channel!=null);
+        return stream.getFuture();
+    }
+    
+    private void send(Message msg) {
+        send(msg, null);
+    }
+    
+    //frame is the encoded message when it is shared by several clients, null to encode it here.
+    //a shared frame is retained for this client if it gets queued
+    final void send(Message msg, PooledBuffer frame) {
+        if(!connected){
+            server.sendingFailed(ClientHandler.this,msg);
+            return;
+        }
+        try {
+            enqueue(msg, frame);
+        } catch (SocketException ex) {
+            server.sendingFailed(ClientHandler.this,msg);
+            disconnect(DisconnectReason.WRITE_FAILED);
+        } catch (IOException ex) {
+            //the message could not be encoded
+            Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    private void enqueue(Message msg) throws IOException{
+        enqueue(msg, null);
+    }
+    
+    //encodes the message and queues it for the writer of the transport, frames are queued in encoding order
+    //a shared frame is never modified, it is written through a duplicate of its buffer
+    private void enqueue(Message msg, PooledBuffer frame) throws IOException{
+        ArrayList<Message> dropped = null;
+        boolean refused = false;
+        outputLock.lock();
+        try {
+            long encodeTime = -1;
+            ByteBuffer data;
+            if(frame==null){
+                long start = System.nanoTime();
+                frame=codec.encodeBuffer(msg);
+                encodeTime = System.nanoTime()-start;
+                data = frame.buffer();
+            } else {
+                frame.retain();
+                data = frame.buffer().duplicate();
+            }
+            if(watermarks.getQueuedBytes()+data.remaining()>maxQueuedBytes){
+                if(slowConsumerPolicy==SlowConsumerPolicy.DROP_OLDEST){
+                    //the event loop drops them itself, it may be writing any of them right now
+                    if(channel==null)dropped = outbound.dropOldest(watermarks.getQueuedBytes()+data.remaining()-maxQueuedBytes);
+                    else dropOldestPending = true;
+                } else {
+                    frame.release();
+                    refused = true;
+                    return;
+                }
+            }
+            server.getMetrics().queued(metrics, msg.getTag(), data.remaining(), encodeTime);
+            if(channel==null){
+                outbound.add(msg, data, frame, null);
+                return;
+            }
+            watermarks.added(data.remaining());
+            pendingWrites.add(new OutboundFrame(msg, data, frame, null, 0, 0, null));
+        } finally {
+            outputLock.unlock();
+            //outside the lock, these call back into the application
+            if(dropped!=null){
+                for(Message m:dropped){
+                    server.messageDropped(ClientHandler.this,m);
+                }
+            }
+            if(refused){
+                Log.debug("[SERVER] Slow consumer, {} bytes queued | {}", watermarks.getQueuedBytes(), socket);
+                if(slowConsumerPolicy==SlowConsumerPolicy.DISCONNECT){
+                    server.sendingFailed(ClientHandler.this,msg);
+                    disconnect(DisconnectReason.SLOW_CONSUMER);
+                } else {
+                    server.messageDropped(ClientHandler.this,msg);
+                }
             }
+        }
+        if(flushScheduled.compareAndSet(false, true)){
+            eventLoop.flush(this);
         } 
     }
     
     
+    //queues a chunk of an OutgoingStream, file is set when the event loop copies the data from it
+    private void enqueueChunk(PooledBuffer frame, FileChannel file, long position, int length, Runnable onWritten) throws IOException{
+        if(!connected){
+            frame.release();
+            throw new SocketException("Connection closed");
+        }
+        outputLock.lock();
+        try {
+            if(channel==null){
+                outbound.add(null, frame.buffer(), frame, onWritten);
+                return;
+            }
+            OutboundFrame chunk = new OutboundFrame(null, frame.buffer(), frame, file, position, length, onWritten);
+            //the body sent from the file counts too, or streams would be invisible to the watermarks
+            watermarks.added(chunk.length);
+            pendingWrites.add(chunk);
+        } finally {
+            outputLock.unlock();
+        }
+        if(flushScheduled.compareAndSet(false, true)){
+            eventLoop.flush(this);
+        } 
+    }
+    
     protected final void spuriousSafeSleep(int ms) throws InterruptedException{
         long startTime = System.nanoTime();
         long curTime = startTime;
@@ -245,4 +754,251 @@ public class ClientHandler {
         
     }
     
+    public boolean isConnected(){
+        return connected;
+    }
+
+    //<editor-fold desc="selector transport">
+
+    SocketChannel getChannel(){
+        return channel;
+    }
+
+    void setSelectionKey(SelectionKey key){
+        selectionKey = key;
+    }
+
+    //runs on the event loop thread
+    void handleRead(){
+        if(!connected)return;
+        if(readBuffer==null)readBuffer = BufferPool.getDefault().acquire(FrameReader.DEFAULT_BUFFER_SIZE);
+        int read;
+        try {
+            read = channel.read(readBuffer.buffer());
+        } catch (IOException ex) {
+            read = -1;
+        }
+        if(read<0){
+            disconnect(DisconnectReason.CLOSED);
+            return;
+        }
+        processFrames();
+    }
+
+    //runs on the event loop thread
+    private void continueReading(){
+        if(!connected || !readPaused)return;
+        if(!server.getActionPool().trySubmit(pausedAction)){
+            server.getActionPool().resumeWhenRoom(this);
+            return;
+        }
+        pausedAction = null;
+        readPaused = false;
+        //frames that were read before the pause
+        processFrames();
+        if(!isReadPaused())updateInterest();
+    }
+    
+    //runs on the event loop thread
+    private void continueAfterChunks(){
+        if(!connected || !chunksPaused)return;
+        chunksPaused = false;
+        //continueReading goes on once the action pool has room
+        if(readPaused)return;
+        processFrames();
+        if(!isReadPaused())updateInterest();
+    }
+    
+    private boolean isReadPaused(){
+        return readPaused || chunksPaused;
+    }
+    
+    //dispatches every complete frame in the read buffer, until reading gets paused
+    private void processFrames(){
+        ByteBuffer buffer = readBuffer.buffer();
+        buffer.flip();
+        int needed = 0;
+        while(!isReadPaused() && buffer.remaining()>=FrameCodec.HEADER_LENGTH){
+            int pos = buffer.position();
+            int length;
+            try {
+                length = FrameCodec.getLength(buffer, pos);
+            } catch (IOException ex) {
+                //stream is corrupt, no way to find the next frame
+                Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
+                disconnect(DisconnectReason.PROTOCOL_ERROR);
+                return;
+            }
+            if(buffer.remaining()<FrameCodec.HEADER_LENGTH+length){
+                needed = FrameCodec.HEADER_LENGTH+length;
+                break;
+            }
+            buffer.position(pos+FrameCodec.HEADER_LENGTH+length);
+            if(FrameCodec.isChunk(buffer, pos)){
+                if(!onChunk(buffer, pos+FrameCodec.HEADER_LENGTH, length))break;
+                continue;
+            }
+            try {
+                if(!onMessage(decode(buffer, pos+FrameCodec.HEADER_LENGTH, length, FrameCodec.isCompressed(buffer, pos))))break;
+            } catch (ProtocolException ex) {
+                Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
+                disconnect(DisconnectReason.PROTOCOL_ERROR);
+                return;
+            } catch (IOException ex) {
+                Logger.getLogger(ClientHandler.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (ClassNotFoundException ex) {
+                //ignore the message
+            }
+        }
+        if(!buffer.hasRemaining() && !isReadPaused()){
+            //nothing left to keep
+            readBuffer.release();
+            readBuffer = null;
+            return;
+        }
+        buffer.compact();
+        if(needed>buffer.capacity()){
+            PooledBuffer bigger = BufferPool.getDefault().acquire(needed);
+            buffer.flip();
+            bigger.buffer().put(buffer);
+            readBuffer.release();
+            readBuffer = bigger;
+        }
+    }
+
+    //runs on the event loop thread once the client is disconnected
+    private void releaseBuffers(){
+        if(readBuffer!=null){
+            readBuffer.release();
+            readBuffer = null;
+        }
+        OutboundFrame frame;
+        while((frame = pendingWrites.poll())!=null){
+            frame.release();
+        }
+        watermarks.clear();
+    }
+
+    //runs on the event loop thread
+    void handleWrite(){
+        flushScheduled.set(false);
+        if(selectionKey==null || !selectionKey.isValid()) return;
+        if(dropOldestPending){
+            dropOldestPending = false;
+            dropOldest();
+        }
+        ByteBuffer[] batch = eventLoop.gatherBuffers();
+        try {
+            while(!pendingWrites.isEmpty()){
+                //gather the queued frames into a single write
+                int count = 0;
+                long bytes = 0;
+                for(OutboundFrame frame:pendingWrites){
+                    batch[count++] = frame.data;
+                    bytes += frame.data.remaining();
+                    //the file of a chunk is transferred after its header, on its own
+                    if(frame.file!=null || count==batch.length || bytes>=maxBatchBytes) break;
+                }
+                long written = channel.write(batch, 0, count);
+                Arrays.fill(batch, 0, count, null);
+                OutboundFrame frame;
+                while((frame = pendingWrites.peek())!=null && !frame.data.hasRemaining()){
+                    if(frame.file!=null && !transferFile(frame)){
+                        writeBlocked = true;
+                        updateInterest();
+                        return;
+                    }
+                    pendingWrites.poll();
+                    frame.release();
+                    watermarks.removed(frame.length);
+                    if(frame.onWritten!=null)frame.onWritten.run();
+                }
+                if(written<bytes){
+                    //socket buffer is full, continue when the channel becomes writable
+                    writeBlocked = true;
+                    updateInterest();
+                    return;
+                }
+            }
+            writeBlocked = false;
+            updateInterest();
+        } catch (IOException ex) {
+            OutboundFrame frame;
+            while((frame = pendingWrites.poll())!=null){
+                frame.release();
+                if(frame.msg!=null)server.sendingFailed(ClientHandler.this,frame.msg);
+            }
+            watermarks.clear();
+            disconnect(DisconnectReason.WRITE_FAILED);
+        }
+    }
+
+    //runs on the event loop thread, the only one taking frames off the queue. drops the oldest
+    //message frames beyond the limit, except the head which may be partly written
+    private void dropOldest(){
+        long excess = watermarks.getQueuedBytes()-maxQueuedBytes;
+        Iterator<OutboundFrame> it = pendingWrites.iterator();
+        boolean head = true;
+        while(excess>0 && it.hasNext()){
+            OutboundFrame frame = it.next();
+            boolean started = head && frame.data.position()>0;
+            head = false;
+            if(frame.msg==null || started)continue;
+            it.remove();
+            frame.release();
+            watermarks.removed(frame.length);
+            excess -= frame.length;
+            server.messageDropped(ClientHandler.this,frame.msg);
+        }
+    }
+
+    //writes the file of a chunk frame straight from the page cache, false when the socket buffer is full
+    private boolean transferFile(OutboundFrame frame) throws IOException{
+        while(frame.fileRemaining>0){
+            long n = frame.file.transferTo(frame.filePosition, frame.fileRemaining, channel);
+            if(n==0){
+                if(frame.filePosition>=frame.file.size()) throw new IOException("File shrank while being sent");
+                return false;
+            }
+            frame.filePosition += n;
+            frame.fileRemaining -= n;
+        }
+        return true;
+    }
+
+    //runs on the event loop thread
+    private void updateInterest(){
+        if(selectionKey==null || !selectionKey.isValid())return;
+        selectionKey.interestOps((isReadPaused() ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private static final class OutboundFrame {
+        //null for the chunks of a stream
+        final Message msg;
+        //the buffer of frame, or a duplicate of it for shared frames
+        final ByteBuffer data;
+        final PooledBuffer frame;
+        //the bytes of data and of the file part when it was queued
+        final long length;
+        //the part of a file sent after data, for the chunks of a file
+        final FileChannel file;
+        long filePosition;
+        long fileRemaining;
+        final Runnable onWritten;
+        OutboundFrame(Message msg, ByteBuffer data, PooledBuffer frame, FileChannel file, long position, long length, Runnable onWritten){
+            this.msg=msg;
+            this.data=data;
+            this.frame=frame;
+            this.length=data.remaining()+length;
+            this.file=file;
+            this.filePosition=position;
+            this.fileRemaining=length;
+            this.onWritten=onWritten;
+        }
+        void release(){
+            frame.release();
+        }
+    }
+    //</editor-fold>
+
 }
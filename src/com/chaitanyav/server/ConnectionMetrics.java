@@ -0,0 +1,52 @@
+package com.chaitanyav.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of one ClientHandler, see ClientHandler.getMetrics(). Messages and bytes out
+ * are counted when a message is queued for the client, bytes include the frame headers.
+ * @author Chaitanya V
+ */
+public final class ConnectionMetrics {
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder sendFailures = new LongAdder();
+    //of the last answered ping, -1 before that
+    volatile long heartbeatRtt = -1;
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    /**
+     * @return The round trip time of the last answered ping in microseconds, -1 if none was answered yet
+     */
+    public double getHeartbeatRttMicros() {
+        long rtt = heartbeatRtt;
+        return rtt < 0 ? -1 : rtt / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "in=" + getMessagesIn() + " (" + getBytesIn() + " bytes) out=" + getMessagesOut() + " (" + getBytesOut()
+                + " bytes) sendFailures=" + getSendFailures() + " heartbeatRtt=" + getHeartbeatRttMicros() + "us";
+    }
+}
@@ -0,0 +1,22 @@
+package com.chaitanyav.server;
+
+/**
+ * Why a ClientHandler was stopped, see ClientHandler.getDisconnectReason().
+ * @author Chaitanya V
+ */
+public enum DisconnectReason {
+    //the client closed the connection
+    CLOSED,
+    //the client didn't answer a ping in time
+    HEARTBEAT_TIMEOUT,
+    //writing to the client failed
+    WRITE_FAILED,
+    //the client sent something that isn't a frame
+    PROTOCOL_ERROR,
+    //more was queued for the client than it read, see SlowConsumerPolicy.DISCONNECT
+    SLOW_CONSUMER,
+    //a callback of the application threw while the event loop handled the client
+    CALLBACK_FAILED,
+    //stop() was called, by the application or the Server
+    STOPPED
+}
@@ -0,0 +1,164 @@
+package com.chaitanyav.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector thread serving many non-blocking connections.
+ * The Server creates a small number of these when the selector transport is enabled
+ * and hands every accepted connection to one of them. All reads and writes of a
+ * connection happen on the thread of its EventLoop.
+ * @author Chaitanya V
+ */
+final class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    //handed over from other threads, consumed by the loop thread
+    private final Queue<ClientHandler> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<ClientHandler> flushes = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    //only touched by the loop thread. reused by every connection of the loop to gather its frames into one write
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[64];
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    /**
+     * Registers a connection with this loop. May be called from any thread.
+     */
+    void register(ClientHandler hnd) {
+        registrations.add(hnd);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write out the pending frames of the connection. May be called from any thread.
+     */
+    void flush(ClientHandler hnd) {
+        flushes.add(hnd);
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread. May be called from any thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            processRegistrations();
+            runTasks();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                ClientHandler hnd = (ClientHandler) key.attachment();
+                try {
+                    if (key.isReadable()) hnd.handleRead();
+                    if (key.isValid() && key.isWritable()) hnd.handleWrite();
+                } catch (CancelledKeyException ex) {
+                    //closed by another thread
+                } catch (RuntimeException ex) {
+                    failed(hnd, ex);
+                }
+            }
+            //last, so frames queued by the reads and tasks above go out before the loop blocks again
+            processFlushes();
+        }
+        //tasks of the connections stopped with the server, such as giving back their buffers
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ex) {}
+    }
+
+    private void processRegistrations() {
+        ClientHandler hnd;
+        while ((hnd = registrations.poll()) != null) {
+            try {
+                hnd.setSelectionKey(hnd.getChannel().register(selector, SelectionKey.OP_READ, hnd));
+                //frames sent before the registration was done
+                hnd.handleWrite();
+            } catch (ClosedChannelException ex) {
+                hnd.stopNonBlocking();
+            } catch (RuntimeException ex) {
+                failed(hnd, ex);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    //a callback of the application threw while the loop handled the connection. only that
+    //connection is dropped, the loop goes on serving the others
+    private void failed(ClientHandler hnd, RuntimeException ex) {
+        Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, ex);
+        try {
+            hnd.callbackFailed();
+        } catch (RuntimeException again) {
+            //thrown by onClientDisconnected, the client is stopped all the same
+            Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, again);
+        }
+    }
+
+    private void processFlushes() {
+        ClientHandler hnd;
+        while ((hnd = flushes.poll()) != null) {
+            try {
+                hnd.handleWrite();
+            } catch (RuntimeException ex) {
+                failed(hnd, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.chaitanyav.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations in nanoseconds into buckets, four per power of two, so percentiles are
+ * known to within 25%. Every bucket is a striped counter, so threads recording at the same
+ * time don't contend. Recording doesn't lock and may be called from any thread, it only
+ * allocates the first time a bucket or its stripes are needed.
+ * @author Chaitanya V
+ */
+public final class Histogram {
+    private static final int BUCKETS = 4 + 61 * 4;
+
+    //created when first recorded to, most durations fall in a few buckets
+    private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<>(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos Negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = bucketOf(nanos);
+        LongAdder counter = buckets.get(bucket);
+        if (counter == null) {
+            buckets.compareAndSet(bucket, null, new LongAdder());
+            counter = buckets.get(bucket);
+        }
+        counter.increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @param percent 0 to 100
+     * @return The upper bound of the bucket the percentile falls in, in nanoseconds
+     */
+    public long getPercentile(double percent) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            LongAdder counter = buckets.get(i);
+            counts[i] = counter == null ? 0 : counter.sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(percent / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @return The recorded values so far in microseconds, for reporting
+     */
+    public Snapshot snapshot() {
+        long n = count.sum();
+        return new Snapshot(n, n == 0 ? 0 : sum.sum() / 1000.0 / n, getPercentile(50) / 1000.0,
+                getPercentile(90) / 1000.0, getPercentile(99) / 1000.0, max.get() / 1000.0);
+    }
+
+    //values below 4 have a bucket each, above that the two bits after the highest one pick one of four
+    private static int bucketOf(long value) {
+        if (value < 4) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - 2)) & 3;
+        return 4 + (exp - 2) * 4 + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 4) return bucket;
+        int exp = (bucket - 4) / 4 + 2;
+        long sub = (bucket - 4) % 4;
+        return ((4 + sub + 1) << (exp - 2)) - 1;
+    }
+
+    /**
+     * The state of a Histogram at one moment, in microseconds.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final double mean, p50, p90, p99, max;
+
+        Snapshot(long count, double mean, double p50, double p90, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return mean;
+        }
+
+        public double getP50Micros() {
+            return p50;
+        }
+
+        public double getP90Micros() {
+            return p90;
+        }
+
+        public double getP99Micros() {
+            return p99;
+        }
+
+        public double getMaxMicros() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus", count, mean, p50, p90, p99, max);
+        }
+    }
+}
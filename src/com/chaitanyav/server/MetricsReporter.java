@@ -0,0 +1,17 @@
+package com.chaitanyav.server;
+
+import java.util.Collection;
+
+/**
+ * Receives the metrics of a Server at a fixed interval, see Server.setMetricsReporter().
+ * Called on the timer thread of the server, so it should hand slow work such as network
+ * calls to a thread of its own.
+ * @author Chaitanya V
+ */
+public interface MetricsReporter {
+    /**
+     * @param metrics The metrics of the server, counted since it was created
+     * @param clients The connected clients, ClientHandler.getMetrics() has their own counters
+     */
+    void report(ServerMetrics metrics, Collection<ClientHandler> clients);
+}
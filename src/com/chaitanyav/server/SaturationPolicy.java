@@ -0,0 +1,18 @@
+package com.chaitanyav.server;
+
+/**
+ * What the Server does with an action that requires a separate thread when its action pool
+ * has no free thread and no room in its queue.
+ * @author Chaitanya V
+ */
+public enum SaturationPolicy {
+    /**
+     * The ClientHandler stops reading from its client until the action fits. Further messages
+     * of that client wait in the socket and TCP slows the client down. Nothing is lost.
+     */
+    PAUSE_READING,
+    /**
+     * The action is dropped and Server.onActionRejected is called. The client keeps being read.
+     */
+    DISCARD
+}
@@ -0,0 +1,81 @@
+package com.chaitanyav.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the tasks given to it one at a time, in the order they were given, on a pool
+ * that is shared with other SerialExecutors. Every ClientHandler has one, so Actions that
+ * don't require a separate thread keep their per client ordering while the number of
+ * threads stays the same however many clients are connected.
+ * @author Chaitanya V
+ */
+final class SerialExecutor implements Executor {
+    //tasks run before the executor steps aside so other clients get a turn on the pool
+    private static final int BATCH = 16;
+
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //set while a runner of this executor is queued on or running in the pool
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean shutdown = false;
+
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task;
+            for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(SerialExecutor.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            scheduled.set(false);
+            schedule();
+        }
+    };
+
+    SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        offer(task);
+    }
+
+    /**
+     * Same as execute, for tasks that must be told when they are dropped.
+     * @return false if the task was dropped because of shutdown()
+     */
+    boolean offer(Runnable task) {
+        if (shutdown) return false;
+        tasks.add(task);
+        schedule();
+        return true;
+    }
+
+    /**
+     * Tasks given after this are dropped, the ones already given still run.
+     */
+    void shutdown() {
+        shutdown = true;
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                pool.execute(runner);
+            } catch (RejectedExecutionException ex) {
+                //the server is stopping and shut the pool down, the tasks may have buffers to release
+                runner.run();
+            }
+        }
+    }
+}
@@ -1,15 +1,44 @@
 package com.chaitanyav.server;
 
+import com.chaitanyav.ActionRegistry;
+import com.chaitanyav.BinaryCodec;
+import com.chaitanyav.Compression;
 import com.chaitanyav.Constants;
-import static com.chaitanyav.Utils.*;
+import com.chaitanyav.FrameCodec;
+import com.chaitanyav.MemoryOutbox;
+import com.chaitanyav.Log;
 import com.chaitanyav.Message;
+import com.chaitanyav.MessageCodec;
+import com.chaitanyav.OutboundQueue;
+import com.chaitanyav.TagTable;
+import com.chaitanyav.Outbox;
+import com.chaitanyav.PooledBuffer;
+import com.chaitanyav.StreamHandler;
+import com.chaitanyav.Threads;
+import com.chaitanyav.TimerWheel;
+import com.chaitanyav.WriteWatermarks;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Vector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
@@ -18,22 +47,68 @@ import java.util.concurrent.Executors;
 public class Server {
     
     private ServerSocket ssock;
-    private Vector<ClientHandler> clientHandlers = new Vector<>();
+    //the connected clients by id. adding, removing and looking up a client never locks the others
+    private final ConcurrentHashMap<Long, ClientHandler> clientHandlers = new ConcurrentHashMap<>();
+    private final AtomicLong nextClientId = new AtomicLong();
     
-    //used to store session data. useful in case of reconnection after disconnect. must be cleaned after some interval.
-    //the String here is the UUID that identifies a client uniquely
-    //for future, server must allow overriding this id generation method so as to support custom ids such as phone numbers
-    private HashMap<String, Object> sessionData = new HashMap<>();
+    //used to store session data. useful in case of reconnection after disconnect. cleaned by the timer once a session times out.
+    //the String here is the token that identifies a session uniquely, see newSessionId
+    private SessionStore sessions;
+    private boolean sessionsEnabled = true;
+    private long sessionTimeout = 5*60*1000;
+    private int maxSessions = 100000;
+    //keeps the messages that couldn't be delivered to a client until it resumes its session
+    private Outbox outbox = null;
+    private int maxUndelivered = MemoryOutbox.DEFAULT_CAPACITY;
     
     private volatile boolean running=false;
     
     //executes under context of clienthandler thread
     //declared here instead of static in clienthandler so that multiple servers can coexist in same application
-    final private HashMap<String,Action> actions = new HashMap<>();
+    //can be changed while messages are received, lookups don't lock
+    final private ActionRegistry<Action> actions = new ActionRegistry<>();
+    private final TagTable tags = actions.getTags();
+    //the tag tables received from the clients. clients with the same tags share one, so a broadcast is encoded once for them.
+    //bounded, so clients sending made up tag lists can't fill the memory
+    private final ConcurrentHashMap<List<String>, TagTable> peerTables = new ConcurrentHashMap<>();
+    private static final int MAX_PEER_TABLES = 64;
+    //the key of the frames of clients without compression in fanOut
+    private static final Object NO_COMPRESSION = new Object();
+    //receive the streams the clients send, by tag
+    private final ConcurrentHashMap<String, StreamHandler<ClientHandler>> streamHandlers = new ConcurrentHashMap<>();
     
     //executor service. all ClientHandlers will share this
     //not static so as to support multiple servers in same application
-    private ExecutorService cachedPool = Executors.newCachedThreadPool();
+    //bounded, a client whose action doesn't fit is handled according to saturationPolicy
+    private ActionPool actionPool;
+    private int actionPoolThreads = 256;
+    private int actionQueueLimit = 10000;
+    private SaturationPolicy saturationPolicy = SaturationPolicy.PAUSE_READING;
+    
+    //runs the actions that don't require a separate thread. every ClientHandler queues its
+    //actions on it in order, so the number of threads doesn't grow with the number of clients
+    private ExecutorService sequentialPool;
+    private int sequentialPoolSize = Runtime.getRuntime().availableProcessors();
+    
+    //writes the queued messages of the clients of the blocking transport, and reads the chunks
+    //of the streams sent to any client. a thread is only taken while there is something to do
+    private ExecutorService writerPool;
+    
+    //creates every thread of the server, see useVirtualThreads()
+    private boolean virtualThreads = false;
+    private ThreadFactory readerFactory;
+    
+    //write coalescing. a batch is flushed once it reaches maxBatchBytes, the writer waits
+    //up to maxBatchDelay microseconds for a batch to fill up
+    private int maxBatchBytes = OutboundQueue.DEFAULT_MAX_BATCH_BYTES;
+    private long maxBatchDelay = 0;
+    
+    //flow control of every client. beyond the high watermark a client isn't writable, beyond
+    //maxQueuedBytes the slow consumer policy applies
+    private long lowWatermark = WriteWatermarks.DEFAULT_LOW;
+    private long highWatermark = WriteWatermarks.DEFAULT_HIGH;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private long maxQueuedBytes = 64L * 1024 * 1024;
     
     
     //disconnect timeout and pongTimeout DEFAULT in MilliSeconds
@@ -44,16 +119,40 @@ public class Server {
     
     private boolean heartbeat = true;
     
+    //runs the heartbeat of every client. one thread, however many clients are connected
+    private TimerWheel timer;
+    
+    //the subscribers of every topic, see publish()
+    private final TopicRegistry topics = new TopicRegistry();
+    
+    //always recorded. published through JMX while running, and to the reporter if there is one
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private ObjectName metricsName;
+    private MetricsReporter metricsReporter;
+    private long metricsInterval;
+    
+    //encodes the messages of every client, the clients must use the same codec
+    private MessageCodec codec = new BinaryCodec();
+    //used with the clients that ask for it
+    private Compression compression = null;
+    
+    //selector transport. when eventLoopCount is 0 every client gets its own reader and connection checker threads
+    private int eventLoopCount = 0;
+    private EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
     
     
-    Thread connectorThread = new Thread(){
+    
+    Thread connectorThread;
+    private final Runnable connector = new Runnable(){
         @Override
         public void run(){
             while(running){
                 try {
                     Socket s = ssock.accept();
-                    log("[SERVER] New socket connected - "+s);
-                    clientHandlers.add(newClientHandler(s,Server.this));        
+                    Log.info("[SERVER] New socket connected - {}", s);
+                    //the ClientHandler adds itself to the clients
+                    newClientHandler(s,Server.this);        
                 } catch (IOException ex) {}
             }
         }
@@ -73,7 +172,7 @@ public class Server {
      * @param pongTimeout_ms The amount of time to wait for 'pong' after 'ping' has been sent to the client after inactivity for disconnect_ms time.
      */
     public Server(int port,int pingInterval_ms,int pongTimeout_ms) {
-        log("[SERVER] Initializing....");
+        Log.info("[SERVER] Initializing....");
         this.port=port;
         pingInterval=pingInterval_ms;
         pongTimeout=pongTimeout_ms;
@@ -86,9 +185,34 @@ public class Server {
      */
     public void start() throws IOException{
         running=true;
-        ssock = new ServerSocket(port);
+        timer = new TimerWheel("ServerTimer", 10, 512, false);
+        if(outbox==null)outbox = new MemoryOutbox(maxUndelivered);
+        sessions = new SessionStore(sessionTimeout, maxSessions, outbox);
+        if(sessionsEnabled)timer.schedule(sessionSweeper, sweepInterval());
+        readerFactory = Threads.factory("ReaderThread", virtualThreads, false);
+        writerPool = Threads.newCachedPool("ServerWriter", virtualThreads, false);
+        //with virtual threads there is no point in limiting the number of threads
+        sequentialPool = virtualThreads ? Threads.newCachedPool("SequentialAction", true, false)
+                : Executors.newFixedThreadPool(sequentialPoolSize);
+        actionPool = new ActionPool(actionPoolThreads, actionQueueLimit, Threads.factory("Action", virtualThreads, false));
+        if(eventLoopCount>0){
+            eventLoops = new EventLoop[eventLoopCount];
+            for(int i=0;i<eventLoopCount;i++){
+                eventLoops[i] = new EventLoop("EventLoop-"+i);
+                eventLoops[i].start();
+            }
+            //accepted sockets of a ServerSocketChannel carry their SocketChannel with them
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            ssock = channel.socket();
+        } else {
+            ssock = new ServerSocket(port);
+        }
+        connectorThread = Threads.factory("Connector", virtualThreads, false).newThread(connector);
         connectorThread.start();
-        log("[SERVER] Done. Started!");
+        registerMetrics();
+        if(metricsReporter!=null)timer.schedule(metricsReport, metricsInterval);
+        Log.info("[SERVER] Done. Started!");
     }
     
     /**
@@ -97,16 +221,25 @@ public class Server {
     final public void stop(){
         if(running==false)return;
         onServerStopping();
-        log("[SERVER] Stopping server...");
+        Log.info("[SERVER] Stopping server...");
         running=false;
         try {
             ssock.close();
-            for(ClientHandler hnd:clientHandlers){
+            for(ClientHandler hnd:clientHandlers.values()){
                 hnd.stopNonBlocking();
             }
         } catch (IOException ex) {}
-        cachedPool.shutdown();
-        log("[SERVER] Server stopped!");
+        if(eventLoops!=null){
+            for(EventLoop loop:eventLoops){
+                loop.shutdown();
+            }
+        }
+        unregisterMetrics();
+        actionPool.shutdown();
+        sequentialPool.shutdown();
+        writerPool.shutdown();
+        timer.stop();
+        Log.info("[SERVER] Server stopped!");
     }
     
     //setters and getters
@@ -119,14 +252,249 @@ public class Server {
      * @throws Exception 
      */
     final public void setAction(String tag,Action action) throws Exception{
-        if(tag.equals(Constants.PING) || tag.equals(Constants.PONG) ||actions.containsKey(tag)){
+        if(TagTable.isReserved(tag) || !actions.add(tag, action)){
             throw new Exception("Action already exists!");
         }
-        else actions.put(tag, action);
     }
     
-    final Vector<ClientHandler> getClientList(){
-        return clientHandlers;
+    /**
+     * Sets the Action of the tag in place of the one it has, if any. Messages received after
+     * this are handed to the new Action, the ones already handed to the old Action finish there.
+     * @param tag
+     * @param action
+     * @return The previous Action of the tag, null if it had none
+     * @throws IllegalArgumentException If the tag is reserved
+     */
+    final public Action replaceAction(String tag,Action action){
+        if(TagTable.isReserved(tag))throw new IllegalArgumentException("Reserved tag "+tag);
+        return actions.replace(tag, action);
+    }
+    
+    /**
+     * Removes the Action of the tag, messages with the tag are ignored from then on.
+     * @param tag
+     * @return The removed Action, null if the tag had none
+     */
+    final public Action removeAction(String tag){
+        return actions.remove(tag);
+    }
+    
+    /**
+     * Sets what receives the streams clients send with the tag, see Client.sendFile.
+     * Stream tags are separate from the tags of Actions.
+     * @param tag
+     * @param handler null to ignore the streams with the tag
+     */
+    final public void setStreamHandler(String tag,StreamHandler<ClientHandler> handler){
+        if(handler==null)streamHandlers.remove(tag);
+        else streamHandlers.put(tag, handler);
+    }
+    
+    final ConcurrentHashMap<String, StreamHandler<ClientHandler>> getStreamHandlers(){
+        return streamHandlers;
+    }
+    
+    //handles the session handshake of a client. token is the session the client had before, or null
+    final void resumeSession(ClientHandler hnd, String token){
+        if(!sessionsEnabled || hnd.getSession()!=null)return;
+        Session session = token==null ? null : sessions.get(token);
+        boolean resumed = session!=null;
+        if(resumed){
+            ClientHandler previous = session.attach(hnd);
+            //the old connection may not have noticed it is dead yet
+            if(previous!=null && previous!=hnd)previous.stopNonBlocking();
+        } else {
+            session = sessions.create(newSessionId(hnd), hnd);
+        }
+        hnd.setSession(session);
+        hnd.sendData(Constants.SESSION, session.getId());
+        if(resumed){
+            for(Message msg:session.drainUndelivered()){
+                hnd.send(msg, null);
+            }
+            hnd.runCallback(() -> onSessionResumed(hnd));
+        }
+    }
+    
+    /**
+     * Returns a session of the server.
+     * @param id The token of the session
+     * @return The session or null if it doesn't exist or has timed out
+     */
+    public final Session getSession(String id){
+        return sessions==null ? null : sessions.get(id);
+    }
+    
+    /**
+     * Sends a message to the client of a session. If the client is disconnected the message
+     * is kept in the session and sent when the client resumes it.
+     * @param sessionId
+     * @param tag
+     * @param data
+     * @return false if the session doesn't exist or has timed out
+     */
+    public final boolean sendToSession(String sessionId, String tag, Object data){
+        Session session = getSession(sessionId);
+        if(session==null)return false;
+        ClientHandler hnd = session.getClientHandler();
+        if(hnd!=null && hnd.isConnected()){
+            hnd.sendData(tag, data);
+            return true;
+        }
+        session.store(new Message(tag, data));
+        //the client may have resumed the session just before the message was stored
+        redeliver(session);
+        return true;
+    }
+    
+    //sends what is kept in the session if its client is connected again
+    private void redeliver(Session session){
+        ClientHandler hnd = session.getClientHandler();
+        if(hnd!=null && hnd.isConnected()){
+            for(Message msg:session.drainUndelivered()){
+                hnd.send(msg, null);
+            }
+        }
+    }
+    
+    /**
+     * Configures how long sessions are kept. Must be called before start().
+     * @param timeout_ms How long a session is kept after its client disconnected. Defaults to 5 minutes.
+     * @param maxSessions The number of sessions above which the oldest session of a disconnected
+     * client is evicted. Defaults to 100000.
+     * @param maxUndelivered The number of undelivered messages kept per session, older ones are
+     * dropped. Defaults to 1000, 0 keeps none. Only used by the default outbox.
+     */
+    public void setSessions(long timeout_ms, int maxSessions, int maxUndelivered){
+        if(running)return;
+        this.sessionTimeout=timeout_ms;
+        this.maxSessions=Math.max(1, maxSessions);
+        this.maxUndelivered=maxUndelivered;
+    }
+    
+    /**
+     * Sets where the messages that couldn't be delivered to a client are kept until the client
+     * resumes its session. A MemoryOutbox is used by default, a FileOutbox keeps them on disk
+     * instead of in memory. Sessions don't survive a restart of the server, so what an earlier
+     * run left in the outbox is deleted once it is older than the session timeout.
+     * Must be called before start().
+     * @param outbox 
+     */
+    public void setOutbox(Outbox outbox){
+        if(!running)this.outbox=outbox;
+    }
+    
+    /**
+     * Clients don't get sessions, every connection starts over. Must be called before start().
+     */
+    public void disableSessions(){
+        if(!running)sessionsEnabled=false;
+    }
+    
+    private long sweepInterval(){
+        return Math.max(sessionTimeout/4, 1000);
+    }
+    
+    private final Runnable sessionSweeper = new Runnable(){
+        @Override
+        public void run(){
+            if(!running)return;
+            sessions.sweep();
+            outbox.removeStale(sessionTimeout);
+            timer.schedule(this, sweepInterval());
+        }
+    };
+    
+    private final Runnable metricsReport = new Runnable(){
+        @Override
+        public void run(){
+            if(!running)return;
+            try {
+                metricsReporter.report(metrics, getClients());
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            timer.schedule(this, metricsInterval);
+        }
+    };
+    
+    private void registerMetrics(){
+        try {
+            metricsName = new ObjectName("com.chaitanyav:type=Server,port="+port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException ex) {
+            //another server of the JVM on the same port, one that failed to start
+            Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
+            metricsName = null;
+        }
+    }
+    
+    private void unregisterMetrics(){
+        if(metricsName==null)return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
+        }
+        metricsName = null;
+    }
+    
+    /**
+     * Returns the counters and histograms of the server, see ServerMetrics. They are also
+     * published through JMX as com.chaitanyav:type=Server,port=PORT while the server runs.
+     * @return The metrics
+     */
+    public final ServerMetrics getMetrics(){
+        return metrics;
+    }
+    
+    /**
+     * Hands the metrics to the reporter every interval while the server runs. Must be
+     * called before start().
+     * @param reporter null for none
+     * @param interval_ms 
+     */
+    public void setMetricsReporter(MetricsReporter reporter, long interval_ms){
+        if(running)return;
+        metricsReporter = reporter;
+        metricsInterval = Math.max(interval_ms, 1);
+    }
+    
+    final long nextClientId(){
+        return nextClientId.incrementAndGet();
+    }
+    
+    final void addClient(ClientHandler hnd){
+        metrics.connectionsAccepted.increment();
+        clientHandlers.put(hnd.getId(), hnd);
+        //lost the race with the client's disconnection, which found nothing to remove
+        if(!hnd.isConnected())clientHandlers.remove(hnd.getId(), hnd);
+    }
+    
+    final void removeClient(ClientHandler hnd){
+        clientHandlers.remove(hnd.getId(), hnd);
+    }
+    
+    /**
+     * Returns the ClientHandler of a connected client.
+     * @param id The id returned by ClientHandler.getId()
+     * @return The ClientHandler or null if no client with this id is connected
+     */
+    final public ClientHandler getClient(long id){
+        return clientHandlers.get(id);
+    }
+    
+    /**
+     * Returns a read-only view of the connected clients. It can be iterated while clients
+     * connect and disconnect, the iteration sees each client at most once.
+     * @return The ClientHandlers of the connected clients
+     */
+    final public Collection<ClientHandler> getClients(){
+        return Collections.unmodifiableCollection(clientHandlers.values());
+    }
+    
+    final public int getClientCount(){
+        return clientHandlers.size();
     }
     
     /**
@@ -147,15 +515,163 @@ public class Server {
         return actions.get(tag);
     }
     
+    //the hot path, an array index instead of a map lookup
+    final Action getAction(int tagId){
+        return actions.get(tagId);
+    }
+    
+    final TagTable getTags(){
+        return tags;
+    }
+    
+    final TagTable internPeerTags(List<String> peerTags){
+        TagTable table = peerTables.get(peerTags);
+        if(table!=null)return table;
+        if(peerTables.size()>=MAX_PEER_TABLES){
+            //a table of its own, broadcasts are then encoded separately for this client
+            table = new TagTable();
+            table.setAll(peerTags);
+            return table;
+        }
+        return peerTables.computeIfAbsent(peerTags, (list)->{
+            TagTable interned = new TagTable();
+            interned.setAll(list);
+            return interned;
+        });
+    }
+    
     /**
      * Executes a Runnable on the thread pool
-     * @param privatePool
+     * @param hnd The ClientHandler that received the message
+     * @param msg The message that invoked the action
      * @param runnable The code to be executed.
      * @param seperateThread
+     * @return false if the ClientHandler must stop reading until the action pool has room
+     */
+    final boolean executeAction(ClientHandler hnd,Message msg,Runnable runnable,boolean seperateThread){
+        if(!seperateThread){
+            hnd.getSequentialExecutor().execute(runnable);
+            return true;
+        }
+        if(actionPool.trySubmit(runnable))return true;
+        if(saturationPolicy==SaturationPolicy.DISCARD){
+            hnd.runCallback(() -> onActionRejected(hnd, msg));
+            return true;
+        }
+        return hnd.awaitActionPool(runnable);
+    }
+    
+    /**
+     * Sends a message to every connected client. Same as calling sendData on every ClientHandler,
+     * but with a stateless codec such as BinaryCodec the message is encoded only once.
+     * Never waits for slow clients, the message is queued for each of them. Clients the message
+     * can't be sent to are reported through onMsgSendingFailed.
+     * @param tag
+     * @param data 
+     */
+    public final void broadcast(String tag, Object data){
+        broadcast(null, tag, data);
+    }
+    
+    /**
+     * Sends a message to every connected client accepted by the filter, see broadcast(tag, data).
+     * @param filter Called once for every client, null sends to all
+     * @param tag
+     * @param data 
+     */
+    public final void broadcast(Predicate<ClientHandler> filter, String tag, Object data){
+        fanOut(clientHandlers.values(), filter, new Message(tag, data));
+    }
+    
+    /**
+     * Sends a message to every client subscribed to the topic. The tag of the message is the
+     * name of the topic, the clients receive it with the Action set for that tag. Encoded once,
+     * as in broadcast.
+     * @param topic
+     * @param data 
+     */
+    public final void publish(String topic, Object data){
+        fanOut(topics.getSubscribers(topic), null, new Message(topic, data));
+    }
+    
+    private void fanOut(Iterable<ClientHandler> clients, Predicate<ClientHandler> filter, Message msg){
+        //one frame for every distinct tag table and compression of the clients, usually just one or two
+        IdentityHashMap<Object, IdentityHashMap<Object, PooledBuffer>> frames = codec.isStateless() ? new IdentityHashMap<>() : null;
+        boolean encodingFailed = false;
+        try {
+            for(ClientHandler hnd:clients){
+                if(filter!=null && !filter.test(hnd))continue;
+                if(encodingFailed){
+                    //the clients after the failure don't get it either
+                    messageDropped(hnd, msg);
+                    continue;
+                }
+                PooledBuffer frame = null;
+                if(frames!=null){
+                    TagTable peerTags = hnd.getPeerTags();
+                    Compression compression = hnd.getCompression();
+                    IdentityHashMap<Object, PooledBuffer> byTags = frames.computeIfAbsent(compression==null ? NO_COMPRESSION : compression, (c)->new IdentityHashMap<>());
+                    frame = byTags.get(peerTags.version());
+                    if(frame==null){
+                        try {
+                            FrameCodec frameCodec = new FrameCodec(codec, tags, peerTags);
+                            frameCodec.setCompression(compression);
+                            frame = frameCodec.encodeBuffer(msg);
+                        } catch (IOException ex) {
+                            //the message could not be encoded
+                            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+                            encodingFailed = true;
+                            messageDropped(hnd, msg);
+                            continue;
+                        }
+                        byTags.put(peerTags.version(), frame);
+                    }
+                }
+                hnd.send(msg, frame);
+            }
+        } finally {
+            //every client that queued a frame holds a reference of its own
+            if(frames!=null){
+                for(IdentityHashMap<Object, PooledBuffer> byTags:frames.values()){
+                    for(PooledBuffer frame:byTags.values()){
+                        frame.release();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Subscribes a client to a topic, as if it had called Client.subscribe(topic).
+     * A client is unsubscribed from all its topics when it disconnects.
+     * @param hnd
+     * @param topic 
      */
-    final void executeAction(ExecutorService privatePool,Runnable runnable,boolean seperateThread){
-        if(seperateThread)cachedPool.submit(runnable);
-        else privatePool.submit(runnable);
+    public final void subscribe(ClientHandler hnd, String topic){
+        if(topics.subscribe(topic, hnd)){
+            hnd.getTopics().add(topic);
+            //lost the race with the client's disconnection, which may have missed this topic
+            if(!hnd.isConnected())unsubscribe(hnd, topic);
+        }
+    }
+    
+    public final void unsubscribe(ClientHandler hnd, String topic){
+        topics.unsubscribe(topic, hnd);
+        hnd.getTopics().remove(topic);
+    }
+    
+    final void unsubscribeAll(ClientHandler hnd){
+        for(String topic:hnd.getTopics()){
+            unsubscribe(hnd, topic);
+        }
+    }
+    
+    /**
+     * @param topic
+     * @return The number of clients subscribed to the topic
+     */
+    public final int getSubscriberCount(String topic){
+        return topics.getSubscribers(topic).size();
     }
     
     /**
@@ -186,6 +702,8 @@ public class Server {
     /**
      * This method is called when sendData method fails to send data to the client.
      * It is called before disconnection process starts for that client.
+     * Failures noticed by an event loop are reported on the sequential pool instead, in order
+     * with the actions of the client, so the loop doesn't wait for this method.
      * It can be used for e.g. to store the message in a database to be delivered
      * later to the same client.
      * It must be overridden in the child class. 
@@ -196,10 +714,78 @@ public class Server {
         //may be overridden
     }
     
+    /**
+     * Called when a client stops being writable because more than the high watermark is
+     * queued for it, and when it becomes writable again, see setWriteBufferWatermarks.
+     * Called on the thread that queued or wrote the bytes, so it must not block. A typical use
+     * is to stop producing for the client until it is writable again.
+     * @param hnd
+     * @param writable hnd.isWritable()
+     */
+    protected void onWritabilityChanged(ClientHandler hnd, boolean writable){
+        //may be overridden
+    }
+    
+    /**
+     * This method is called when an action requiring a separate thread was dropped because the
+     * action pool was saturated. Only called with SaturationPolicy.DISCARD.
+     * @param hnd The ClientHandler of the client that sent the message
+     * @param msg The message whose action was dropped
+     */
+    protected void onActionRejected(ClientHandler hnd,Message msg) {
+        //may be overridden
+    }
+    
+    //called instead of onMsgSendingFailed by the ClientHandlers, keeps the message for the client's session
+    final void sendingFailed(ClientHandler hnd,Message msg){
+        metrics.sendFailed(hnd.getMetrics());
+        Session session = hnd.getSession();
+        //replies aren't kept, the call they answer is gone with the connection
+        if(session!=null && !TagTable.isReserved(msg.getTag()) && msg.getCorrelationId()==0){
+            session.store(msg);
+            //the client may have resumed the session on a new connection, which already took
+            //what was kept, while this write was failing on the old one
+            if(session.getClientHandler()!=hnd)redeliver(session);
+        }
+        hnd.runCallback(() -> onMsgSendingFailed(hnd, msg));
+    }
+    
+    //a message dropped by the slow consumer policy of a connected client, not kept in its session
+    final void messageDropped(ClientHandler hnd,Message msg){
+        metrics.sendFailed(hnd.getMetrics());
+        hnd.runCallback(() -> onMsgSendingFailed(hnd, msg));
+    }
+    
+    /**
+     * Called when a client resumed its session after reconnecting, after the messages kept in
+     * the session were queued for it.
+     * @param hnd The ClientHandler of the new connection, hnd.getSession() is the resumed session
+     */
+    protected void onSessionResumed(ClientHandler hnd){
+        //may be overridden
+    }
+    
+    /**
+     * Generates the token of a new session. Returns a random UUID by default, may be overridden
+     * to use custom ids such as user names or phone numbers. Must be unique among the sessions
+     * of the server and hard to guess, the token is all a client needs to resume a session.
+     * @param hnd The ClientHandler of the client the session is created for
+     * @return The session token
+     */
+    protected String newSessionId(ClientHandler hnd){
+        return UUID.randomUUID().toString();
+    }
+    
     protected void onClientConnected(ClientHandler hnd){
         //may be overridden
     }
     
+    /**
+     * Called once a client is disconnected, after the actions of the client that don't require
+     * a separate thread. Runs on the sequential pool, not on the thread that noticed the
+     * disconnection, so a slow callback holds one of its threads.
+     * @param hnd 
+     */
     protected void onClientDisconnected(ClientHandler hnd){
         //may be overridden
     }
@@ -217,6 +803,202 @@ public class Server {
         return new ClientHandler(socket, server);
     }
     
+    /**
+     * Serves all clients from one selector thread per available processor instead of
+     * giving every client its own threads. Must be called before start().
+     */
+    public void enableNio(){
+        enableNio(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Serves all clients from the given number of selector threads instead of
+     * giving every client its own threads. Must be called before start().
+     * @param eventLoops The number of selector threads
+     */
+    public void enableNio(int eventLoops){
+        if(!running)eventLoopCount=Math.max(1, eventLoops);
+    }
+    
+    public boolean isNioEnabled(){
+        return eventLoopCount>0;
+    }
+    
+    //spreads the connections over the event loops
+    final EventLoop nextEventLoop(){
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
+    
+    /**
+     * Sets the codec used to encode and decode messages. The clients must use the same codec.
+     * BinaryCodec is used by default. Must be called before start().
+     * @param codec 
+     */
+    public void setCodec(MessageCodec codec){
+        if(!running)this.codec=codec;
+    }
+    
+    public MessageCodec getCodec(){
+        return codec;
+    }
+    
+    /**
+     * Compresses large messages for the clients that have compression set too, see Compression.
+     * Off by default. Must be called before start().
+     * @param compression null to turn compression off
+     */
+    public void setCompression(Compression compression){
+        if(!running)this.compression=compression;
+    }
+    
+    public Compression getCompression(){
+        return compression;
+    }
+    
+    /**
+     * Configures how the queued messages of a client are coalesced into writes.
+     * Must be called before start().
+     * @param maxBatchBytes The connection is flushed whenever this many bytes have been written
+     * @param maxDelayMicros How long the writer of a client waits for more messages before writing
+     * a batch smaller than maxBatchBytes. Trades a little latency for fewer system calls when
+     * many small messages are sent. 0, the default, writes right away. Only used by the blocking
+     * transport, the selector transport coalesces whatever is queued when it writes.
+     */
+    public void setWriteBatching(int maxBatchBytes, long maxDelayMicros){
+        if(running)return;
+        this.maxBatchBytes=maxBatchBytes;
+        this.maxBatchDelay=maxDelayMicros;
+    }
+    
+    final int getMaxBatchBytes(){
+        return maxBatchBytes;
+    }
+    
+    final long getMaxBatchDelay(){
+        return maxBatchDelay;
+    }
+    
+    /**
+     * Sets when a client stops and starts being writable, see ClientHandler.isWritable() and
+     * onWritabilityChanged. Defaults to 32 KB and 64 KB. Must be called before start().
+     * @param low A client becomes writable again when its queued bytes fall to this
+     * @param high A client stops being writable when its queued bytes go above this
+     */
+    public void setWriteBufferWatermarks(long low, long high){
+        if(running)return;
+        this.lowWatermark=low;
+        this.highWatermark=high;
+    }
+    
+    final long getLowWatermark(){
+        return lowWatermark;
+    }
+    
+    final long getHighWatermark(){
+        return highWatermark;
+    }
+    
+    /**
+     * Limits the bytes queued for a client that reads slower than it is sent to, so that it
+     * can't take all the memory of the server. Sending never blocks, when a message would take
+     * the queue of a client beyond the limit the policy decides what is dropped.
+     * Defaults to DISCONNECT at 64 MB. Must be called before start().
+     * @param policy
+     * @param maxQueuedBytes 
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy, long maxQueuedBytes){
+        if(running)return;
+        this.slowConsumerPolicy=policy;
+        this.maxQueuedBytes=maxQueuedBytes;
+    }
+    
+    final SlowConsumerPolicy getSlowConsumerPolicy(){
+        return slowConsumerPolicy;
+    }
+    
+    final long getMaxQueuedBytes(){
+        return maxQueuedBytes;
+    }
+    
+    final ExecutorService getWriterPool(){
+        return writerPool;
+    }
+    
+    /**
+     * Sets the number of threads shared by all clients to run the actions that don't
+     * require a separate thread. Defaults to the number of processors. Must be called before start().
+     * @param threads 
+     */
+    public void setSequentialPoolSize(int threads){
+        if(!running)sequentialPoolSize=Math.max(1, threads);
+    }
+    
+    /**
+     * Runs the reader threads of the blocking transport, the action pools and the writers on
+     * virtual threads, so that a large number of mostly idle blocking connections doesn't need
+     * as many platform threads. Requires JDK 21 or later, on older JVMs platform threads are
+     * used as before. Must be called before start().
+     */
+    public void useVirtualThreads(){
+        if(running)return;
+        if(!Threads.isVirtualSupported())Log.warn("[SERVER] Virtual threads are not supported by this JVM, using platform threads");
+        virtualThreads=true;
+    }
+    
+    public boolean isUsingVirtualThreads(){
+        return virtualThreads && Threads.isVirtualSupported();
+    }
+    
+    final ThreadFactory getReaderFactory(){
+        return readerFactory;
+    }
+    
+    final ExecutorService getSequentialPool(){
+        return sequentialPool;
+    }
+    
+    /**
+     * Bounds the pool running the actions that require a separate thread. Must be called before start().
+     * @param maxThreads The maximum number of actions running at the same time. Defaults to 256.
+     * @param queueLimit The maximum number of actions waiting for a thread. Defaults to 10000.
+     * @param policy What happens to an action arriving when both are used up
+     */
+    public void setActionPool(int maxThreads, int queueLimit, SaturationPolicy policy){
+        if(running)return;
+        actionPoolThreads=Math.max(1, maxThreads);
+        actionQueueLimit=Math.max(1, queueLimit);
+        saturationPolicy=policy;
+    }
+    
+    final ActionPool getActionPool(){
+        return actionPool;
+    }
+    
+    /**
+     * @return The number of actions waiting for a thread of the action pool
+     */
+    public int getActionQueueDepth(){
+        return actionPool==null ? 0 : actionPool.getQueueDepth();
+    }
+    
+    /**
+     * @return The number of actions currently running on the action pool
+     */
+    public int getActiveActionCount(){
+        return actionPool==null ? 0 : actionPool.getActiveCount();
+    }
+    
+    /**
+     * @return How many times an action didn't fit in the saturated action pool
+     */
+    public long getRejectedActionCount(){
+        return actionPool==null ? 0 : actionPool.getRejectedCount();
+    }
+    
+    final TimerWheel getTimer(){
+        return timer;
+    }
+    
     public void disableHeartbeat(){
         if(!running)heartbeat=false;
     }
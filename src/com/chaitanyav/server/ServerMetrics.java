@@ -0,0 +1,235 @@
+package com.chaitanyav.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and histograms of a Server, see Server.getMetrics(). Recording uses striped
+ * counters and doesn't allocate once a tag has been seen, so it is always on. Also published
+ * through JMX, see ServerMetricsMXBean, and handed to the MetricsReporter of the server.
+ * Messages and bytes out are counted when a message is queued for a client.
+ * @author Chaitanya V
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+    //tags beyond this many share one entry, so clients sending made up tags can't fill the memory
+    static final int MAX_TAGS = 1000;
+    static final String OTHER_TAGS = "_other";
+
+    private final Server server;
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder sendFailures = new LongAdder();
+    final LongAdder connectionsAccepted = new LongAdder();
+    final Histogram decodeTime = new Histogram();
+    final Histogram encodeTime = new Histogram();
+    final Histogram actionQueueWait = new Histogram();
+    final Histogram actionExecution = new Histogram();
+    final Histogram heartbeatRtt = new Histogram();
+    private final LongAdder[] disconnects = new LongAdder[DisconnectReason.values().length];
+    private final ConcurrentHashMap<String, TagMetrics> tags = new ConcurrentHashMap<>();
+
+    ServerMetrics(Server server) {
+        this.server = server;
+        for (int i = 0; i < disconnects.length; i++) {
+            disconnects[i] = new LongAdder();
+        }
+    }
+
+    //<editor-fold desc="recording">
+    void received(ConnectionMetrics conn, int bytes, long decodeNanos) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+        conn.messagesIn.increment();
+        conn.bytesIn.add(bytes);
+        decodeTime.record(decodeNanos);
+    }
+
+    //encodeNanos is negative for frames encoded once for many clients
+    void queued(ConnectionMetrics conn, String tag, int bytes, long encodeNanos) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        conn.messagesOut.increment();
+        conn.bytesOut.add(bytes);
+        tag(tag).messagesOut.increment();
+        if (encodeNanos >= 0) encodeTime.record(encodeNanos);
+    }
+
+    void actionRan(TagMetrics tag, long waitNanos, long executionNanos) {
+        actionQueueWait.record(waitNanos);
+        actionExecution.record(executionNanos);
+        tag.queueWait.record(waitNanos);
+        tag.execution.record(executionNanos);
+    }
+
+    void heartbeat(ConnectionMetrics conn, long rttNanos) {
+        heartbeatRtt.record(rttNanos);
+        conn.heartbeatRtt = rttNanos;
+    }
+
+    void sendFailed(ConnectionMetrics conn) {
+        sendFailures.increment();
+        conn.sendFailures.increment();
+    }
+
+    void disconnected(DisconnectReason reason) {
+        disconnects[reason.ordinal()].increment();
+    }
+
+    TagMetrics tag(String tag) {
+        TagMetrics metrics = tags.get(tag);
+        if (metrics != null) return metrics;
+        if (tags.size() >= MAX_TAGS) tag = OTHER_TAGS;
+        return tags.computeIfAbsent(tag, (t) -> new TagMetrics());
+    }
+    //</editor-fold>
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getClientCount();
+    }
+
+    @Override
+    public int getActionQueueDepth() {
+        return server.getActionQueueDepth();
+    }
+
+    @Override
+    public int getActiveActions() {
+        return server.getActiveActionCount();
+    }
+
+    @Override
+    public long getRejectedActions() {
+        return server.getRejectedActionCount();
+    }
+
+    @Override
+    public Histogram.Snapshot getDecodeTime() {
+        return decodeTime.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getEncodeTime() {
+        return encodeTime.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getActionQueueWait() {
+        return actionQueueWait.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getActionExecution() {
+        return actionExecution.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getHeartbeatRtt() {
+        return heartbeatRtt.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (DisconnectReason reason : DisconnectReason.values()) {
+            counts.put(reason.name(), disconnects[reason.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, TagMetrics> getTags() {
+        return new TreeMap<>(tags);
+    }
+
+    /**
+     * @param tag
+     * @return The metrics of the tag, null if no message was sent or received with it
+     */
+    public TagMetrics getTag(String tag) {
+        return tags.get(tag);
+    }
+
+    @Override
+    public String toString() {
+        return "in=" + getMessagesIn() + " (" + getBytesIn() + " bytes) out=" + getMessagesOut() + " (" + getBytesOut()
+                + " bytes) sendFailures=" + getSendFailures() + " clients=" + getConnectedClients()
+                + " actionQueue=" + getActionQueueDepth() + " disconnects=" + getDisconnects()
+                + "\n  decode " + getDecodeTime() + "\n  encode " + getEncodeTime()
+                + "\n  action wait " + getActionQueueWait() + "\n  action run " + getActionExecution()
+                + "\n  heartbeat rtt " + getHeartbeatRtt();
+    }
+
+    /**
+     * The metrics of one tag. Messages in and the action times are counted for tags that
+     * have an Action, messages out for every tag.
+     */
+    public static final class TagMetrics {
+        final LongAdder messagesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder();
+        final Histogram queueWait = new Histogram();
+        final Histogram execution = new Histogram();
+
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+
+        /**
+         * @return How long the messages waited for a thread to run their Action
+         */
+        public Histogram.Snapshot getQueueWait() {
+            return queueWait.snapshot();
+        }
+
+        /**
+         * @return How long the Action ran
+         */
+        public Histogram.Snapshot getExecution() {
+            return execution.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return "in=" + getMessagesIn() + " out=" + getMessagesOut() + " wait " + getQueueWait() + " run " + getExecution();
+        }
+    }
+}
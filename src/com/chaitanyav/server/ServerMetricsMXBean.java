@@ -0,0 +1,51 @@
+package com.chaitanyav.server;
+
+import java.util.Map;
+
+/**
+ * The metrics of a Server as seen through JMX, registered as
+ * com.chaitanyav:type=Server,port=PORT while the server is running.
+ * Durations are in microseconds.
+ * @author Chaitanya V
+ */
+public interface ServerMetricsMXBean {
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSendFailures();
+
+    long getConnectionsAccepted();
+
+    int getConnectedClients();
+
+    int getActionQueueDepth();
+
+    int getActiveActions();
+
+    long getRejectedActions();
+
+    Histogram.Snapshot getDecodeTime();
+
+    Histogram.Snapshot getEncodeTime();
+
+    Histogram.Snapshot getActionQueueWait();
+
+    Histogram.Snapshot getActionExecution();
+
+    Histogram.Snapshot getHeartbeatRtt();
+
+    /**
+     * @return The number of clients that were stopped, by DisconnectReason
+     */
+    Map<String, Long> getDisconnects();
+
+    /**
+     * @return The metrics of every tag messages were sent or received with
+     */
+    Map<String, ServerMetrics.TagMetrics> getTags();
+}
@@ -0,0 +1,101 @@
+package com.chaitanyav.server;
+
+import com.chaitanyav.Message;
+import com.chaitanyav.Outbox;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of a client that outlives its connection. A session is created when a client
+ * connects and is kept for a while after it disconnects, so a client that reconnects in time
+ * resumes it instead of starting over. Messages that could not be delivered to the client in
+ * the meantime are kept in the outbox of the server and sent when it resumes.
+ * @author Chaitanya V
+ */
+public final class Session {
+    private final String id;
+    private final ConcurrentHashMap<String, Object> attributes = new ConcurrentHashMap<>();
+    //keeps the undelivered messages under the id of the session
+    private final Outbox outbox;
+
+    //null while no client is connected
+    private volatile ClientHandler handler;
+    private volatile long detachedAt;
+
+    Session(String id, ClientHandler handler, Outbox outbox) {
+        this.id = id;
+        this.handler = handler;
+        this.outbox = outbox;
+    }
+
+    /**
+     * @return The token the client resumes the session with
+     */
+    public String getId() {
+        return id;
+    }
+
+    public Object get(String key) {
+        return attributes.get(key);
+    }
+
+    /**
+     * Stores a value in the session. The session can be used from any thread.
+     * @param key
+     * @param value Must not be null
+     */
+    public void put(String key, Object value) {
+        attributes.put(key, value);
+    }
+
+    public Object remove(String key) {
+        return attributes.remove(key);
+    }
+
+    /**
+     * @return The ClientHandler of the client while it is connected, otherwise null
+     */
+    public ClientHandler getClientHandler() {
+        return handler;
+    }
+
+    /**
+     * @return The number of messages waiting for the client to resume the session
+     */
+    public int getUndeliveredCount() {
+        return outbox.size(id);
+    }
+
+    /**
+     * @return The connection that had the session before, or null
+     */
+    ClientHandler attach(ClientHandler hnd) {
+        ClientHandler previous = handler;
+        handler = hnd;
+        return previous;
+    }
+
+    void detach(ClientHandler hnd) {
+        if (handler != hnd) return;
+        detachedAt = System.nanoTime();
+        handler = null;
+    }
+
+    //the time since the client disconnected, 0 while it is connected
+    long detachedFor(long now) {
+        return handler == null ? now - detachedAt : 0;
+    }
+
+    void store(Message msg) {
+        outbox.store(id, msg);
+    }
+
+    List<Message> drainUndelivered() {
+        return outbox.drain(id);
+    }
+
+    //the session is gone for good
+    void discard() {
+        outbox.remove(id);
+    }
+}
@@ -0,0 +1,77 @@
+package com.chaitanyav.server;
+
+import com.chaitanyav.Outbox;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The sessions of a Server. A session whose client stays disconnected for longer than the
+ * timeout is removed by sweep(), which the server runs periodically on its timer. When the
+ * store is full, creating a session evicts the session that has been disconnected the longest.
+ * Sessions of connected clients are never evicted, so the store may exceed its limit while
+ * more clients than that are connected.
+ * @author Chaitanya V
+ */
+final class SessionStore {
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long timeoutNanos;
+    private final int maxSessions;
+    private final Outbox outbox;
+
+    SessionStore(long timeout_ms, int maxSessions, Outbox outbox) {
+        this.timeoutNanos = timeout_ms * 1000000L;
+        this.maxSessions = maxSessions;
+        this.outbox = outbox;
+    }
+
+    Session create(String id, ClientHandler hnd) {
+        if (sessions.size() >= maxSessions) {
+            sweep();
+            if (sessions.size() >= maxSessions) evictOldest();
+        }
+        Session session = new Session(id, hnd, outbox);
+        sessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * @return The session or null if it doesn't exist or has timed out
+     */
+    Session get(String id) {
+        Session session = sessions.get(id);
+        if (session != null && session.detachedFor(System.nanoTime()) > timeoutNanos) {
+            remove(session);
+            return null;
+        }
+        return session;
+    }
+
+    void sweep() {
+        long now = System.nanoTime();
+        for (Session session : sessions.values()) {
+            if (session.detachedFor(now) > timeoutNanos) remove(session);
+        }
+    }
+
+    private void evictOldest() {
+        long now = System.nanoTime();
+        Session oldest = null;
+        for (Session session : sessions.values()) {
+            if (session.detachedFor(now) > 0 && (oldest == null || session.detachedFor(now) > oldest.detachedFor(now))) {
+                oldest = session;
+            }
+        }
+        if (oldest != null) remove(oldest);
+    }
+
+    private void remove(Session session) {
+        if (sessions.remove(session.getId(), session)) session.discard();
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    long getTimeout() {
+        return timeoutNanos / 1000000L;
+    }
+}
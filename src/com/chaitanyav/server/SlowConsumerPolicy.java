@@ -0,0 +1,26 @@
+package com.chaitanyav.server;
+
+/**
+ * What a ClientHandler does with a message when more than the limit of bytes is already
+ * queued for its client, because the client reads slower than it is sent to, see
+ * Server.setSlowConsumerPolicy. The messages that are dropped are passed to
+ * onMsgSendingFailed.
+ * @author Chaitanya V
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * The oldest queued messages that haven't started to be written are dropped to make room.
+     * For clients that only need the latest state, such as price updates.
+     */
+    DROP_OLDEST,
+    /**
+     * The new message is dropped, the queued ones are still written.
+     */
+    DROP_NEWEST,
+    /**
+     * The new message is dropped and the client is disconnected with
+     * DisconnectReason.SLOW_CONSUMER. A client that comes back resumes its session and gets
+     * the messages kept there.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,50 @@
+package com.chaitanyav.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The subscribers of every topic of a Server. Topics and their subscriber sets are
+ * concurrent maps, so subscribing, unsubscribing and publishing on different topics
+ * don't contend, and a publish iterates the subscribers without locking them.
+ * A topic is removed when its last subscriber leaves.
+ * @author Chaitanya V
+ */
+final class TopicRegistry {
+    private final ConcurrentHashMap<String, Set<ClientHandler>> topics = new ConcurrentHashMap<>();
+
+    /**
+     * @return false if the client already was subscribed
+     */
+    boolean subscribe(String topic, ClientHandler hnd) {
+        boolean[] added = new boolean[1];
+        //compute keeps a concurrent unsubscribe from removing the set while the client is added to it
+        topics.compute(topic, (t, subscribers) -> {
+            if (subscribers == null) subscribers = ConcurrentHashMap.newKeySet();
+            added[0] = subscribers.add(hnd);
+            return subscribers;
+        });
+        return added[0];
+    }
+
+    /**
+     * @return false if the client wasn't subscribed
+     */
+    boolean unsubscribe(String topic, ClientHandler hnd) {
+        boolean[] removed = new boolean[1];
+        topics.computeIfPresent(topic, (t, subscribers) -> {
+            removed[0] = subscribers.remove(hnd);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        return removed[0];
+    }
+
+    /**
+     * @return A live view of the subscribers, empty if the topic has none
+     */
+    Set<ClientHandler> getSubscribers(String topic) {
+        Set<ClientHandler> subscribers = topics.get(topic);
+        return subscribers == null ? Collections.<ClientHandler>emptySet() : subscribers;
+    }
+}
@@ -0,0 +1,127 @@
+
+import com.chaitanyav.BinaryCodec;
+import com.chaitanyav.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that BinaryCodec decodes what it encodes, and that malformed input from a peer
+ * fails with an IOException instead of allocating what it claims, overflowing the stack or
+ * throwing anything else. Exits with 1 if a check fails.
+ * Usage - BinaryCodecTest [random inputs]
+ * @author Chaitanya V
+ */
+public class BinaryCodecTest {
+    private static final BinaryCodec codec = new BinaryCodec();
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        int randomInputs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        //every supported type, nested
+        Map<Object, Object> map = new LinkedHashMap<>();
+        map.put("key", Arrays.asList(1, -1L, Long.MIN_VALUE, Integer.MAX_VALUE));
+        map.put(7, null);
+        List<Object> data = new ArrayList<>(Arrays.asList(null, true, false, (byte) -3, (short) -300, 'x',
+                42, 1L << 40, 1.5f, -2.25, "text \u00e9\u4e2d", new byte[]{1, 2, 3}, map));
+        Message sent = new Message("tag", data, 12345, true);
+        byte[] encoded = encode(sent);
+        Message got = decode(encoded);
+        check(got.getTag().equals("tag"), "tag round trip");
+        check(got.getCorrelationId() == 12345 && got.isReply(), "correlation id and reply flag round trip");
+        List<?> list = (List<?>) got.getData();
+        check(list.size() == data.size(), "list size round trip");
+        for (int i = 0; i < data.size(); i++) {
+            Object a = data.get(i), b = list.get(i);
+            boolean same = a instanceof byte[] ? Arrays.equals((byte[]) a, (byte[]) b) : a == null ? b == null : a.equals(b);
+            check(same, "value round trip " + a);
+        }
+
+        //every truncation of a valid message
+        int truncated = 0;
+        for (int length = 0; length < encoded.length; length++) {
+            if (rejects(Arrays.copyOf(encoded, length))) truncated++;
+        }
+        check(truncated == encoded.length, "every truncated message is rejected");
+
+        //lengths and counts larger than the frame
+        check(rejects(bytes(0, 3, 't', 'a', 'g', 0, 10, 0xFF, 0xFF, 0xFF, 0xFF, 0x07)), "huge string length");
+        check(rejects(bytes(0, 3, 't', 'a', 'g', 0, 11, 0xFF, 0xFF, 0xFF, 0xFF, 0x07)), "huge byte array length");
+        check(rejects(bytes(0, 3, 't', 'a', 'g', 0, 12, 0xFF, 0xFF, 0xFF, 0x7F)), "huge list count");
+        check(rejects(bytes(0, 3, 't', 'a', 'g', 0, 13, 0xFF, 0xFF, 0xFF, 0x7F)), "huge map count");
+        check(rejects(bytes(0, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01)), "malformed varint");
+        check(rejects(bytes(0, 3, 't', 'a', 'g', 0, 99)), "unknown type");
+
+        //nesting deeper than the limit
+        ByteArrayOutputStream deep = new ByteArrayOutputStream();
+        deep.write(bytes(0, 3, 't', 'a', 'g', 0));
+        for (int i = 0; i < 100000; i++) {
+            deep.write(bytes(12, 1));
+        }
+        deep.write(0);
+        check(rejects(deep.toByteArray()), "deep nesting");
+
+        //random input only ever fails with an IOException
+        Random random = new Random(1);
+        int other = 0;
+        for (int i = 0; i < randomInputs; i++) {
+            byte[] input = new byte[1 + random.nextInt(64)];
+            random.nextBytes(input);
+            try {
+                codec.decode(new ByteArrayInputStream(input));
+            } catch (IOException ex) {
+            } catch (RuntimeException | OutOfMemoryError | StackOverflowError ex) {
+                other++;
+            }
+        }
+        check(other == 0, "random input fails with IOException only, " + other + " others");
+
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(msg, out);
+        return out.toByteArray();
+    }
+
+    private static Message decode(byte[] data) throws IOException {
+        return codec.decode(new ByteArrayInputStream(data));
+    }
+
+    //true if the input fails with an IOException
+    private static boolean rejects(byte[] data) {
+        try {
+            decode(data);
+            return false;
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}
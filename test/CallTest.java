@@ -0,0 +1,107 @@
+
+import com.chaitanyav.Message;
+import com.chaitanyav.Utils;
+import com.chaitanyav.client.Client;
+import com.chaitanyav.server.Action;
+import com.chaitanyav.server.ClientHandler;
+import com.chaitanyav.server.Server;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that Client.call matches every reply to its request, that a call times out when
+ * no reply comes in time, and that a reply arriving after its call timed out is dropped
+ * instead of being handed to the Action of the request tag. Exits with 1 if a check fails.
+ * @author Chaitanya V
+ */
+public class CallTest {
+    private static final int PORT = 26820;
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Utils.disableConsoleLogs();
+        Server server = new Server(PORT);
+        server.enableNio(1);
+        server.setAction("inc", new Action(true) {
+            @Override
+            public void execute(ClientHandler hnd, Message msg) {
+                hnd.reply(msg, (Integer) msg.getData() + 1);
+            }
+        });
+        server.setAction("late", new Action(true) {
+            @Override
+            public void execute(ClientHandler hnd, Message msg) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ex) {
+                }
+                hnd.reply(msg, "too late");
+            }
+        });
+        server.start();
+
+        Client client = new Client("localhost", PORT);
+        AtomicInteger lateActions = new AtomicInteger();
+        client.setAction("late", new com.chaitanyav.client.Action() {
+            @Override
+            public void execute(Client c, Message msg) {
+                lateActions.incrementAndGet();
+            }
+        });
+        client.start();
+
+        //many calls in flight, answered in any order
+        List<CompletableFuture<Message>> calls = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            calls.add(client.call("inc", i));
+        }
+        int wrong = 0;
+        for (int i = 0; i < calls.size(); i++) {
+            Message reply = calls.get(i).get(30, TimeUnit.SECONDS);
+            if (!reply.isReply() || (Integer) reply.getData() != i + 1) wrong++;
+        }
+        check(wrong == 0, wrong + " replies didn't match their call");
+
+        //a reply after the timeout
+        try {
+            client.call("late", 1, 100).get(10, TimeUnit.SECONDS);
+            check(false, "a call without a reply in time completed");
+        } catch (ExecutionException ex) {
+            check(ex.getCause() instanceof TimeoutException, "a call without a reply in time fails with " + ex.getCause());
+        }
+        //the late reply arrives meanwhile
+        Thread.sleep(1000);
+        check(lateActions.get() == 0, "a late reply was handed to the Action of its tag " + lateActions.get() + " times");
+        check(client.isConnected(), "the client is still connected after a late reply");
+
+        //a call in flight when the client stops
+        CompletableFuture<Message> pending = client.call("late", 1, 10000);
+        client.stop();
+        try {
+            pending.get(10, TimeUnit.SECONDS);
+            check(false, "a call completed after the client stopped");
+        } catch (ExecutionException ex) {
+            check(ex.getCause() instanceof SocketException, "a call in flight fails with " + ex.getCause() + " when the client stops");
+        }
+
+        server.stop();
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}
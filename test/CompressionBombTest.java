@@ -0,0 +1,187 @@
+
+import com.chaitanyav.BinaryCodec;
+import com.chaitanyav.Compression;
+import com.chaitanyav.FrameCodec;
+import com.chaitanyav.Message;
+import com.chaitanyav.Utils;
+import com.chaitanyav.server.Server;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Checks that compressed frames are only inflated on a connection that agreed to compress,
+ * that a frame claiming more than deflate can pack into its length is rejected before anything
+ * is inflated, and that a server drops a connection sending compressed frames it didn't agree
+ * to. Exits with 1 if a check fails.
+ * @author Chaitanya V
+ */
+public class CompressionBombTest {
+    private static final int PORT = 26850;
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Utils.disableConsoleLogs();
+        byte[] frame = checkRoundTrip();
+        checkNotAgreed(frame);
+        checkClaimedSize();
+        checkServer(frame);
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    //returns a compressed frame
+    private static byte[] checkRoundTrip() throws Exception {
+        FrameCodec sender = agreed(new FrameCodec(new BinaryCodec()));
+        FrameCodec receiver = agreed(new FrameCodec(new BinaryCodec()));
+        String text = repeat("compress me ", 2000);
+        byte[] frame = sender.encode(new Message("text", text));
+        check(FrameCodec.isCompressed(frame, 0), "a large frame is compressed");
+        check(frame.length < text.length() / 10, "a compressed frame of " + text.length() + " chars has " + frame.length + " bytes");
+        Message msg = decode(receiver, frame);
+        check(text.equals(msg.getData()), "a compressed frame decodes to what was sent");
+
+        byte[] small = sender.encode(new Message("text", "hi"));
+        check(!FrameCodec.isCompressed(small, 0), "a small frame is sent as it is");
+        check("hi".equals(decode(receiver, small).getData()), "a small frame decodes to what was sent");
+        return frame;
+    }
+
+    private static void checkNotAgreed(byte[] frame) throws Exception {
+        FrameCodec none = new FrameCodec(new BinaryCodec());
+        expectRejected(none, frame, true, "a compressed frame without any compression");
+        FrameCodec onlyThisEnd = new FrameCodec(new BinaryCodec());
+        onlyThisEnd.setDecompression(new Compression());
+        expectRejected(onlyThisEnd, frame, true, "a compressed frame before the other end agreed");
+    }
+
+    private static void checkClaimedSize() throws Exception {
+        FrameCodec receiver = agreed(new FrameCodec(new BinaryCodec()));
+        //a few bytes claiming 60 MB
+        byte[] liar = bombFrame(new byte[16], 60 * 1024 * 1024);
+        expectRejected(receiver, liar, false, "a 60 MB frame of " + liar.length + " bytes");
+        //real deflate data of 1 MB of zeros, claiming 60 MB
+        byte[] zeros = bombFrame(new byte[1024 * 1024], 60 * 1024 * 1024);
+        expectRejected(receiver, zeros, false, "a 60 MB frame of " + zeros.length + " bytes of deflated zeros");
+        //the claimed size is right, but the data ends early
+        byte[] truncated = bombFrame(new byte[1024 * 1024], 1024 * 1024);
+        truncated = Arrays.copyOf(truncated, truncated.length / 2);
+        setLength(truncated);
+        expectRejected(receiver, truncated, false, "a truncated compressed frame");
+        byte[] negative = bombFrame(new byte[16], -1);
+        expectRejected(receiver, negative, false, "a negative claimed size");
+    }
+
+    //sends a compressed frame to a server that never agreed to compress
+    private static void checkServer(byte[] frame) throws Exception {
+        Server server = new Server(PORT);
+        server.start();
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(frame);
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[4096];
+            boolean closed = false;
+            try {
+                while (in.read(buf) >= 0) {
+                    //what the server sends before it drops the connection
+                }
+                closed = true;
+            } catch (SocketTimeoutException ex) {
+                closed = false;
+            } catch (IOException ex) {
+                //reset by the server
+                closed = true;
+            }
+            check(closed, "the server drops a connection sending compressed frames it didn't agree to");
+        }
+        server.stop();
+    }
+
+    //a frame with the compressed bit, a claimed size and the deflated data
+    private static byte[] bombFrame(byte[] data, int claimedSize) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[FrameCodec.HEADER_LENGTH + 4 + data.length + 64];
+        int pos = FrameCodec.HEADER_LENGTH + 4;
+        while (!deflater.finished()) {
+            pos += deflater.deflate(out, pos, out.length - pos);
+        }
+        deflater.end();
+        out = Arrays.copyOf(out, pos);
+        putInt(out, FrameCodec.HEADER_LENGTH, claimedSize);
+        setLength(out);
+        return out;
+    }
+
+    //writes the header of a compressed frame for the rest of the array
+    private static void setLength(byte[] frame) {
+        putInt(frame, 0, (frame.length - FrameCodec.HEADER_LENGTH) | compressedBit());
+    }
+
+    //taken from a frame the codec compressed, it isn't public
+    private static int compressedBit() {
+        FrameCodec codec = agreed(new FrameCodec(new BinaryCodec()));
+        try {
+            byte[] frame = codec.encode(new Message("text", repeat("x", 4096)));
+            int header = ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16) | ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+            return header & ~FrameCodec.lengthOf(header);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void expectRejected(FrameCodec codec, byte[] frame, boolean protocolError, String what) throws ClassNotFoundException {
+        long start = System.nanoTime();
+        try {
+            decode(codec, frame);
+            check(false, what + " was decoded");
+        } catch (IOException ex) {
+            check(!protocolError || ex instanceof ProtocolException, what + " failed with " + ex);
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        check(ms < 1000, what + " took " + ms + " ms to reject");
+    }
+
+    private static Message decode(FrameCodec codec, byte[] frame) throws IOException, ClassNotFoundException {
+        return codec.decode(frame, FrameCodec.HEADER_LENGTH, frame.length - FrameCodec.HEADER_LENGTH, FrameCodec.isCompressed(frame, 0));
+    }
+
+    private static FrameCodec agreed(FrameCodec codec) {
+        Compression compression = new Compression();
+        codec.setCompression(compression);
+        codec.setDecompression(compression);
+        return codec;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}
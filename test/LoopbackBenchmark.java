@@ -0,0 +1,319 @@
+
+import com.chaitanyav.Message;
+import com.chaitanyav.SerializationCodec;
+import com.chaitanyav.Utils;
+import com.chaitanyav.client.Client;
+import com.chaitanyav.server.Action;
+import com.chaitanyav.server.ClientHandler;
+import com.chaitanyav.server.Server;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the library over loopback, Server and Clients in this JVM, and writes the
+ * results as a JSON array so runs can be compared with each other.
+ *  latency     - round trip percentiles of calls answered with reply()
+ *  throughput  - messages per second from one client, small and large payloads
+ *  broadcast   - the cost of Server.broadcast to many clients
+ *  idle        - heap and threads per idle connection at 1000 and 10000 connections.
+ *                The connections are plain sockets, so only the server side is counted.
+ *                10000 connections need a file descriptor limit above that.
+ * Usage - LoopbackBenchmark [latency] [throughput] [broadcast] [idle] [nio] [virtual] [ser] [quick] [out=file]
+ * Without benchmark names all of them run. quick runs fewer iterations, out defaults to
+ * benchmark-results.json.
+ * @author Chaitanya V
+ */
+public class LoopbackBenchmark {
+    private static final long WAIT_SECONDS = 120;
+
+    private static boolean nio, virtual, ser, quick;
+    private static int port = 27000;
+    private static final List<Map<String, Object>> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<>();
+        String out = "benchmark-results.json";
+        for (String arg : args) {
+            if (arg.equals("nio")) nio = true;
+            else if (arg.equals("virtual")) virtual = true;
+            else if (arg.equals("ser")) ser = true;
+            else if (arg.equals("quick")) quick = true;
+            else if (arg.startsWith("out=")) out = arg.substring(4);
+            else names.add(arg);
+        }
+        if (names.isEmpty()) names = Arrays.asList("latency", "throughput", "broadcast", "idle");
+        Utils.disableConsoleLogs();
+
+        for (String name : names) {
+            switch (name) {
+                case "latency":
+                    latency(16);
+                    latency(4096);
+                    break;
+                case "throughput":
+                    throughput(16, quick ? 20000 : 200000);
+                    throughput(64 * 1024, quick ? 200 : 2000);
+                    break;
+                case "broadcast":
+                    broadcast(quick ? 20 : 100, quick ? 200 : 2000);
+                    break;
+                case "idle":
+                    idle(1000);
+                    if (!quick) idle(10000);
+                    break;
+                default:
+                    System.out.println("Unknown benchmark " + name);
+                    System.exit(1);
+            }
+        }
+
+        try (Writer writer = new FileWriter(out)) {
+            writer.write(toJson(results));
+        }
+        System.out.println("Results written to " + out);
+        System.exit(0);
+    }
+
+    private static void latency(int payloadBytes) throws Exception {
+        Server svr = newServer();
+        svr.setAction("echo", new Action() {
+            @Override
+            public void execute(ClientHandler hnd, Message msg) {
+                hnd.reply(msg, msg.getData());
+            }
+        });
+        svr.start();
+        Client clt = connect(newClient());
+        byte[] payload = new byte[payloadBytes];
+        int warmup = quick ? 2000 : 20000, calls = quick ? 5000 : 50000;
+        for (int i = 0; i < warmup; i++) {
+            clt.call("echo", payload).get(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+        long[] nanos = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            clt.call("echo", payload).get(WAIT_SECONDS, TimeUnit.SECONDS);
+            nanos[i] = System.nanoTime() - start;
+        }
+        clt.stop();
+        svr.stop();
+
+        Arrays.sort(nanos);
+        long sum = 0;
+        for (long n : nanos) sum += n;
+        Map<String, Object> result = result("latency");
+        result.put("payloadBytes", payloadBytes);
+        result.put("calls", calls);
+        result.put("meanMicros", micros(sum / calls));
+        result.put("p50Micros", micros(percentile(nanos, 50)));
+        result.put("p90Micros", micros(percentile(nanos, 90)));
+        result.put("p99Micros", micros(percentile(nanos, 99)));
+        result.put("p999Micros", micros(percentile(nanos, 99.9)));
+        result.put("maxMicros", micros(nanos[calls - 1]));
+        report(result);
+    }
+
+    private static void throughput(int payloadBytes, int messages) throws Exception {
+        Server svr = newServer();
+        AtomicLong received = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        svr.setAction("sink", new Action() {
+            @Override
+            public void execute(ClientHandler hnd, Message msg) {
+                if (received.incrementAndGet() == messages) done.countDown();
+            }
+        });
+        svr.start();
+        Client clt = connect(newClient());
+        byte[] payload = new byte[payloadBytes];
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            clt.sendData("sink", payload);
+        }
+        boolean completed = done.await(WAIT_SECONDS, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        clt.stop();
+        svr.stop();
+
+        Map<String, Object> result = result("throughput");
+        result.put("payloadBytes", payloadBytes);
+        result.put("messages", messages);
+        result.put("completed", completed);
+        result.put("messagesPerSecond", perSecond(received.get(), elapsed));
+        result.put("megabytesPerSecond", perSecond(received.get() * payloadBytes, elapsed) / (1024 * 1024));
+        report(result);
+    }
+
+    private static void broadcast(int clients, int messages) throws Exception {
+        Server svr = newServer();
+        svr.start();
+        CountDownLatch done = new CountDownLatch(clients * messages);
+        List<Client> clts = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Client clt = newClient();
+            clt.setAction("bc", new com.chaitanyav.client.Action() {
+                @Override
+                public void execute(Client c, Message msg) {
+                    done.countDown();
+                }
+            });
+            clts.add(connect(clt));
+        }
+        awaitClients(svr, clients);
+        byte[] payload = new byte[64];
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            svr.broadcast("bc", payload);
+        }
+        long broadcasting = System.nanoTime() - start;
+        boolean completed = done.await(WAIT_SECONDS, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        for (Client clt : clts) clt.stop();
+        svr.stop();
+
+        Map<String, Object> result = result("broadcast");
+        result.put("clients", clients);
+        result.put("messages", messages);
+        result.put("completed", completed);
+        result.put("microsPerBroadcastCall", micros(broadcasting / messages));
+        result.put("deliveriesPerSecond", perSecond((long) clients * messages - done.getCount(), elapsed));
+        report(result);
+    }
+
+    private static void idle(int connections) throws Exception {
+        Server svr = newServer();
+        //the plain sockets wouldn't answer pings
+        svr.disableHeartbeat();
+        svr.start();
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        List<Socket> sockets = new ArrayList<>();
+        String error = null;
+        try {
+            for (int i = 0; i < connections; i++) {
+                sockets.add(new Socket("localhost", svr.getPort()));
+            }
+        } catch (IOException ex) {
+            error = ex.toString();
+        }
+        awaitClients(svr, sockets.size());
+        int opened = svr.getClientCount();
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        for (Socket socket : sockets) socket.close();
+        svr.stop();
+
+        Map<String, Object> result = result("idle");
+        result.put("connections", connections);
+        result.put("opened", opened);
+        if (error != null) result.put("error", error);
+        if (opened > 0) {
+            result.put("heapBytesPerConnection", (heapAfter - heapBefore) / opened);
+            result.put("threadsPerConnection", (double) (threadsAfter - threadsBefore) / opened);
+        }
+        report(result);
+    }
+
+    private static Server newServer() {
+        Server svr = new Server(port++);
+        if (nio) svr.enableNio();
+        if (virtual) svr.useVirtualThreads();
+        if (ser) svr.setCodec(new SerializationCodec());
+        return svr;
+    }
+
+    //a client of the last server, not started yet
+    private static Client newClient() {
+        Client clt = new Client("localhost", port - 1);
+        if (virtual) clt.useVirtualThreads();
+        if (ser) clt.setCodec(new SerializationCodec());
+        return clt;
+    }
+
+    private static Client connect(Client clt) {
+        clt.start();
+        if (!clt.isConnected()) throw new IllegalStateException("Can't connect to port " + (port - 1));
+        return clt;
+    }
+
+    //until the server has count clients, or their number stopped growing for a few seconds
+    private static void awaitClients(Server svr, int count) throws InterruptedException {
+        int last = -1;
+        long deadline = 0;
+        for (int now; (now = svr.getClientCount()) < count; Thread.sleep(10)) {
+            if (now != last) {
+                last = now;
+                deadline = System.currentTimeMillis() + 5000;
+            } else if (System.currentTimeMillis() > deadline) {
+                return;
+            }
+        }
+    }
+
+    private static Map<String, Object> result(String benchmark) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", benchmark);
+        result.put("transport", nio ? "nio" : "blocking");
+        result.put("threads", virtual ? "virtual" : "platform");
+        result.put("codec", ser ? "serialization" : "binary");
+        return result;
+    }
+
+    private static void report(Map<String, Object> result) {
+        results.add(result);
+        System.out.println(result);
+    }
+
+    private static long percentile(long[] sorted, double percent) {
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return count * 1e9 / nanos;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static String toJson(List<Map<String, Object>> results) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("  {");
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : results.get(i).entrySet()) {
+                if (!first) json.append(", ");
+                first = false;
+                json.append('"').append(entry.getKey()).append("\": ");
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    json.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                } else {
+                    json.append(value);
+                }
+            }
+            json.append(i < results.size() - 1 ? "},\n" : "}\n");
+        }
+        return json.append("]\n").toString();
+    }
+}
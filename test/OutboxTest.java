@@ -0,0 +1,147 @@
+
+import com.chaitanyav.BinaryCodec;
+import com.chaitanyav.FileOutbox;
+import com.chaitanyav.MemoryOutbox;
+import com.chaitanyav.Message;
+import com.chaitanyav.Outbox;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks that the outboxes give back the messages of a key in the order they were stored,
+ * drop the oldest ones beyond the limit of a key and new ones beyond the limit for all keys,
+ * and that a FileOutbox finds what an earlier run stored, counts it in its limit and
+ * deletes it with removeStale. Exits with 1 if a check fails.
+ * @author Chaitanya V
+ */
+public class OutboxTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("outboxtest");
+        try {
+            checkOrder("MemoryOutbox", new MemoryOutbox());
+            checkOrder("FileOutbox", new FileOutbox(dir.resolve("order").toFile()));
+            checkMemoryLimits();
+            checkFileLimits(dir.resolve("limits").toFile());
+            checkRestart(dir.resolve("restart").toFile());
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void checkOrder(String name, Outbox outbox) {
+        for (int i = 0; i < 500; i++) {
+            outbox.store(i % 2 == 0 ? "even" : "odd", new Message("m", i));
+        }
+        check(outbox.size("even") == 250 && outbox.size("odd") == 250, name + " - counts per key");
+        check(isSequence(outbox.drain("even"), 0, 2, 250), name + " - drained in the order stored");
+        check(outbox.size("even") == 0 && outbox.drain("even").isEmpty(), name + " - nothing left after drain");
+        outbox.remove("odd");
+        check(outbox.size("odd") == 0 && outbox.drain("odd").isEmpty(), name + " - nothing left after remove");
+        check(outbox.drain("unknown").isEmpty(), name + " - an unknown key is empty");
+    }
+
+    private static void checkMemoryLimits() {
+        MemoryOutbox outbox = new MemoryOutbox(10, 15);
+        for (int i = 0; i < 25; i++) {
+            outbox.store("a", new Message("m", i));
+        }
+        check(isSequence(outbox.drain("a"), 15, 1, 10), "MemoryOutbox - the oldest messages of a full key are dropped");
+        for (int i = 0; i < 10; i++) {
+            outbox.store("a", new Message("m", i));
+            outbox.store("b", new Message("m", i));
+        }
+        check(outbox.size("a") + outbox.size("b") == 15, "MemoryOutbox - new messages are dropped beyond the total");
+        outbox.drain("a");
+        outbox.remove("b");
+        for (int i = 0; i < 10; i++) {
+            outbox.store("c", new Message("m", i));
+        }
+        check(outbox.size("c") == 10, "MemoryOutbox - drained messages no longer count in the total");
+    }
+
+    private static void checkFileLimits(File dir) throws IOException {
+        //segments of 4 KB, at most 16 KB per key
+        FileOutbox outbox = new FileOutbox(dir, new BinaryCodec(), 4096, 16 * 1024, 1024 * 1024);
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < 100; i++) {
+            outbox.store("a", new Message("m", i));
+            outbox.store("big", new Message("m", payload));
+        }
+        List<Message> kept = outbox.drain("big");
+        check(!kept.isEmpty() && kept.size() < 100, "FileOutbox - the oldest segments of a key are deleted beyond its limit, " + kept.size() + " kept");
+        check(isSequence(outbox.drain("a"), 0, 1, 100), "FileOutbox - small messages of another key are all kept in order");
+
+        FileOutbox small = new FileOutbox(new File(dir, "total"), new BinaryCodec(), 4096, 1024 * 1024, 8 * 1024);
+        for (int i = 0; i < 20; i++) {
+            small.store("k" + i, new Message("m", payload));
+        }
+        int stored = 0;
+        for (int i = 0; i < 20; i++) {
+            stored += small.size("k" + i);
+        }
+        check(stored > 0 && stored < 20, "FileOutbox - new messages are dropped beyond the total, " + stored + " stored");
+    }
+
+    private static void checkRestart(File dir) throws IOException {
+        FileOutbox first = new FileOutbox(dir, new BinaryCodec(), 4096, 1024 * 1024, 1024 * 1024);
+        for (int i = 0; i < 50; i++) {
+            first.store("kept", new Message("m", i));
+            first.store("stale", new Message("m", i));
+        }
+        //the next run of the application
+        FileOutbox second = new FileOutbox(dir, new BinaryCodec(), 4096, 1024 * 1024, 1024 * 1024);
+        check(second.size("kept") == 50, "FileOutbox - finds what an earlier run stored");
+        second.store("kept", new Message("m", 50));
+        check(isSequence(second.drain("kept"), 0, 1, 51), "FileOutbox - an earlier run's messages come first, in order");
+        second.removeStale(0);
+        check(second.size("stale") == 0, "FileOutbox - removeStale deletes the keys of an earlier run that weren't used");
+
+        //what an earlier run left counts in the limit for all keys
+        File full = new File(dir, "full");
+        FileOutbox filling = new FileOutbox(full, new BinaryCodec(), 4096, 1024 * 1024, 1024 * 1024);
+        for (int i = 0; i < 4; i++) {
+            filling.store("old" + i, new Message("m", new byte[1000]));
+        }
+        FileOutbox limited = new FileOutbox(full, new BinaryCodec(), 4096, 1024 * 1024, 16 * 1024);
+        limited.store("new", new Message("m", new byte[1000]));
+        check(limited.size("new") == 0, "FileOutbox - an earlier run's keys count in the total");
+        limited.removeStale(0);
+        limited.store("new", new Message("m", new byte[1000]));
+        check(limited.size("new") == 1, "FileOutbox - removeStale frees the total");
+    }
+
+    //true if the messages hold the numbers first, first+step, ... count of them
+    private static boolean isSequence(List<Message> messages, int first, int step, int count) {
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add(first + i * step);
+        }
+        List<Object> actual = new ArrayList<>();
+        for (Message msg : messages) {
+            actual.add(msg.getData());
+        }
+        return actual.equals(expected);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+
+import com.chaitanyav.Message;
+import com.chaitanyav.Utils;
+import com.chaitanyav.client.Client;
+import com.chaitanyav.server.Action;
+import com.chaitanyav.server.ClientHandler;
+import com.chaitanyav.server.Server;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that Actions that don't require a separate thread run in the order their client sent
+ * the messages and never two at a time for one client, while many clients share a sequential
+ * pool of two threads. Runs with the blocking and the selector transport.
+ * Exits with 1 if a check fails.
+ * @author Chaitanya V
+ */
+public class SequentialActionsTest {
+    private static final int CLIENTS = 8;
+    private static final int MESSAGES = 2000;
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Utils.disableConsoleLogs();
+        run(false, 26810);
+        run(true, 26811);
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void run(boolean nio, int port) throws Exception {
+        String transport = nio ? "selector" : "blocking";
+        Map<ClientHandler, Integer> last = new ConcurrentHashMap<>();
+        Map<ClientHandler, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        AtomicInteger overlapping = new AtomicInteger();
+        CountDownLatch received = new CountDownLatch(CLIENTS * MESSAGES);
+
+        Server server = new Server(port);
+        if (nio) server.enableNio(1);
+        server.setSequentialPoolSize(2);
+        server.setAction("seq", new Action(false) {
+            @Override
+            public void execute(ClientHandler hnd, Message msg) {
+                AtomicInteger inside = running.computeIfAbsent(hnd, h -> new AtomicInteger());
+                if (inside.incrementAndGet() != 1) overlapping.incrementAndGet();
+                int n = (Integer) msg.getData();
+                Integer previous = last.put(hnd, n);
+                if (n != (previous == null ? 0 : previous + 1)) outOfOrder.incrementAndGet();
+                //gives the other thread of the pool a chance to run a task of the same client
+                if (n % 100 == 0) Thread.yield();
+                inside.decrementAndGet();
+                received.countDown();
+            }
+        });
+        server.start();
+
+        Client[] clients = new Client[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            clients[i] = new Client("localhost", port);
+            clients[i].start();
+        }
+        Thread[] senders = new Thread[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            Client client = clients[i];
+            senders[i] = new Thread(() -> {
+                for (int n = 0; n < MESSAGES; n++) {
+                    client.sendData("seq", n);
+                }
+            });
+            senders[i].start();
+        }
+        boolean all = received.await(60, TimeUnit.SECONDS);
+        check(all, transport + " - all messages received, " + received.getCount() + " missing");
+        check(outOfOrder.get() == 0, transport + " - " + outOfOrder.get() + " messages out of order");
+        check(overlapping.get() == 0, transport + " - " + overlapping.get() + " actions overlapped another of the same client");
+        check(last.size() == CLIENTS, transport + " - messages of " + last.size() + " clients");
+
+        for (Client client : clients) {
+            client.stop();
+        }
+        server.stop();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+
+import com.chaitanyav.FrameCodec;
+import com.chaitanyav.Message;
+import com.chaitanyav.SerializationCodec;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Pushes millions of messages through one connection's SerializationCodec and prints the
+ * used heap after a full GC at regular intervals. With the default reset thresholds the
+ * heap stays flat, with resets disabled ("unbounded" argument) it grows with every message.
+ * Usage - SerializationSoakTest [messages] [unbounded]
+ * @author Chaitanya V
+ */
+public class SerializationSoakTest {
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        long total = args.length > 0 ? Long.parseLong(args[0]) : 5000000L;
+        boolean unbounded = args.length > 1 && args[1].equals("unbounded");
+        SerializationCodec codec = unbounded ? new SerializationCodec(0, 0) : new SerializationCodec();
+
+        //the two ends of one connection
+        FrameCodec sender = new FrameCodec(codec);
+        FrameCodec receiver = new FrameCodec(codec);
+
+        long interval = total / 10;
+        long firstHeap = -1, lastHeap = 0;
+        for (long i = 1; i <= total; i++) {
+            ArrayList<Object> data = new ArrayList<>();
+            data.add(i);
+            data.add("payload-" + (i % 1000));
+            byte[] frame = sender.encode(new Message("soak", data));
+            Message msg = receiver.decode(frame, FrameCodec.HEADER_LENGTH, frame.length - FrameCodec.HEADER_LENGTH);
+            if (!msg.getTag().equals("soak")) throw new IllegalStateException("Corrupt message " + i);
+
+            if (i % interval == 0) {
+                lastHeap = usedHeap();
+                if (firstHeap < 0) firstHeap = lastHeap;
+                System.out.println(i + " messages - used heap " + (lastHeap / 1024) + " KB");
+            }
+        }
+
+        long growth = lastHeap - firstHeap;
+        System.out.println("Heap growth after the first checkpoint - " + (growth / 1024) + " KB");
+        if (!unbounded && growth > 8 * 1024 * 1024) {
+            System.out.println("FAILED - heap is not flat");
+            System.exit(1);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
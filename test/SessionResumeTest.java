@@ -0,0 +1,111 @@
+
+import com.chaitanyav.Message;
+import com.chaitanyav.Utils;
+import com.chaitanyav.client.Client;
+import com.chaitanyav.server.ClientHandler;
+import com.chaitanyav.server.Server;
+import com.chaitanyav.server.Session;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks that a client that lost its connection resumes its session when it reconnects:
+ * it keeps its token and the session attributes, and gets the messages sent to the session
+ * meanwhile in order. Also checks that a session times out once its client is gone.
+ * Runs with the blocking and the selector transport. Exits with 1 if a check fails.
+ * @author Chaitanya V
+ */
+public class SessionResumeTest {
+    private static final long SESSION_TIMEOUT = 1500;
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Utils.disableConsoleLogs();
+        run(false, 26830);
+        run(true, 26831);
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void run(boolean nio, int port) throws Exception {
+        String transport = (nio ? "selector" : "blocking") + " - ";
+        AtomicInteger serverResumed = new AtomicInteger();
+        Server server = new Server(port) {
+            @Override
+            protected void onSessionResumed(ClientHandler hnd) {
+                serverResumed.incrementAndGet();
+            }
+        };
+        if (nio) server.enableNio(1);
+        server.setSessions(SESSION_TIMEOUT, 1000, 100);
+        server.start();
+
+        AtomicInteger clientResumed = new AtomicInteger();
+        List<Object> received = Collections.synchronizedList(new ArrayList<>());
+        Client client = new Client("localhost", port) {
+            @Override
+            protected void onSessionResumed() {
+                clientResumed.incrementAndGet();
+            }
+        };
+        client.setAction("m", new com.chaitanyav.client.Action() {
+            @Override
+            public void execute(Client c, Message msg) {
+                received.add(msg.getData());
+            }
+        });
+        client.setToAutoConnect(-1);
+        client.start();
+
+        check(waitFor(() -> client.getSessionId() != null), transport + "the client got a session");
+        String token = client.getSessionId();
+        Session session = server.getSession(token);
+        check(session != null && session.getClientHandler() != null, transport + "the session is attached to the connection");
+        if (session == null) return;
+        session.put("user", "bob");
+
+        //the server drops the connection, the client reconnects by itself
+        session.getClientHandler().stop();
+        check(waitFor(() -> session.getClientHandler() == null), transport + "the session is detached when the connection is lost");
+        for (int i = 0; i < 5; i++) {
+            server.sendToSession(token, "m", i);
+        }
+        check(waitFor(() -> received.size() == 5), transport + "the messages sent meanwhile arrived, " + received);
+        check(received.equals(Arrays.asList(0, 1, 2, 3, 4)), transport + "in order, " + received);
+        check(token.equals(client.getSessionId()), transport + "the client kept its token");
+        check(serverResumed.get() == 1 && clientResumed.get() == 1,
+                transport + "both ends were told of the resume, server " + serverResumed + " client " + clientResumed);
+        check(server.getSession(token) == session && "bob".equals(session.get("user")), transport + "the session kept its attributes");
+        check(session.getUndeliveredCount() == 0, transport + "nothing is left undelivered");
+
+        //gone for good
+        client.stop();
+        check(waitFor(() -> server.getSession(token) == null), transport + "the session timed out");
+        check(!server.sendToSession(token, "m", 5), transport + "nothing is sent to a session that timed out");
+        server.stop();
+    }
+
+    //polls the condition for up to 10 seconds
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}
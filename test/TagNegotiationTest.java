@@ -0,0 +1,170 @@
+
+import com.chaitanyav.BinaryCodec;
+import com.chaitanyav.Constants;
+import com.chaitanyav.FrameCodec;
+import com.chaitanyav.Message;
+import com.chaitanyav.TagTable;
+import com.chaitanyav.Utils;
+import com.chaitanyav.client.Client;
+import com.chaitanyav.server.Action;
+import com.chaitanyav.server.ClientHandler;
+import com.chaitanyav.server.Server;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks that the tags of the Actions one end has when a connection starts are sent with the
+ * ids that end assigned, that tags without an id, like those of Actions set later, are still
+ * sent as strings and dispatched, and that a peer can't move the reserved tags or send ids
+ * that aren't in the table. Runs with the blocking and the selector transport.
+ * Exits with 1 if a check fails.
+ * @author Chaitanya V
+ */
+public class TagNegotiationTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Utils.disableConsoleLogs();
+        checkTables();
+        checkFrames();
+        run(false, 26840);
+        run(true, 26841);
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void checkTables() {
+        TagTable local = new TagTable();
+        int alpha = local.register("alpha");
+        check(alpha == TagTable.FIRST_ID && local.register("beta") == TagTable.FIRST_ID + 1, "ids are assigned from FIRST_ID");
+        check(local.register("alpha") == alpha, "a tag keeps its id when registered again");
+
+        TagTable peer = new TagTable();
+        peer.setAll(local.toList());
+        check(peer.idOf("alpha") == alpha && "beta".equals(peer.tagOf(TagTable.FIRST_ID + 1)), "the other end has the same ids");
+        check(peer.idOf("gamma") == 0, "a tag the other end doesn't have has no id");
+
+        //a peer that sends the reserved tags in its list
+        TagTable moved = new TagTable();
+        moved.setAll(Arrays.asList(Constants.PING, "gamma"));
+        check(moved.idOf(Constants.PING) == TagTable.PING, "a reserved tag keeps its well-known id");
+        check(moved.tagOf(TagTable.FIRST_ID) == null, "the slot of a reserved tag stays empty");
+        check(moved.idOf("gamma") == TagTable.FIRST_ID + 1, "the tags after a reserved one keep their ids");
+
+        check(TagTable.toTagList(Arrays.asList("a", "b")) != null, "a list of strings is a tag list");
+        check(TagTable.toTagList(Arrays.asList("a", 1)) == null, "a list with a number isn't a tag list");
+        check(TagTable.toTagList("a") == null, "a string isn't a tag list");
+    }
+
+    private static void checkFrames() throws IOException, ClassNotFoundException {
+        TagTable receiverTags = new TagTable();
+        receiverTags.register("alpha");
+        TagTable senderPeerTags = new TagTable();
+        senderPeerTags.setAll(receiverTags.toList());
+        FrameCodec sender = new FrameCodec(new BinaryCodec(), new TagTable(), senderPeerTags);
+        FrameCodec receiver = new FrameCodec(new BinaryCodec(), receiverTags, new TagTable());
+        FrameCodec plain = new FrameCodec(new BinaryCodec());
+
+        byte[] withId = sender.encode(new Message("alpha", 1));
+        byte[] withTag = plain.encode(new Message("alpha", 1));
+        check(withId.length < withTag.length, "a known tag is sent as an id, " + withId.length + " bytes vs " + withTag.length);
+        Message msg = decode(receiver, withId);
+        check("alpha".equals(msg.getTag()) && msg.getTagId() == TagTable.FIRST_ID, "an id is decoded to its tag");
+        msg = decode(receiver, withTag);
+        check("alpha".equals(msg.getTag()) && msg.getTagId() == TagTable.FIRST_ID, "a known tag sent as a string gets its id");
+
+        msg = decode(receiver, sender.encode(new Message("late", 2)));
+        check("late".equals(msg.getTag()) && msg.getTagId() == 0, "a tag without an id is sent as a string");
+        msg = decode(receiver, sender.encode(new Message(Constants.PING, null)));
+        check(Constants.PING.equals(msg.getTag()), "a reserved tag is sent with its well-known id");
+
+        //the sender believes the receiver has more tags than it has
+        senderPeerTags.setAll(Arrays.asList("alpha", "unknown"));
+        try {
+            decode(receiver, sender.encode(new Message("unknown", 3)));
+            check(false, "an id that isn't in the table was decoded");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+
+    private static Message decode(FrameCodec codec, byte[] frame) throws IOException, ClassNotFoundException {
+        return codec.decode(frame, FrameCodec.HEADER_LENGTH, frame.length - FrameCodec.HEADER_LENGTH);
+    }
+
+    private static void run(boolean nio, int port) throws Exception {
+        String transport = (nio ? "selector" : "blocking") + " - ";
+        List<String> serverReceived = Collections.synchronizedList(new ArrayList<>());
+        List<String> clientReceived = Collections.synchronizedList(new ArrayList<>());
+
+        Server server = new Server(port);
+        if (nio) server.enableNio(1);
+        server.setAction("early", new Action(false) {
+            @Override
+            public void execute(ClientHandler hnd, Message msg) {
+                serverReceived.add(msg.getTag());
+                hnd.sendData("push", 1);
+                hnd.sendData("pushLate", 2);
+            }
+        });
+        server.start();
+
+        Client client = new Client("localhost", port);
+        client.setAction("push", newRecorder(clientReceived));
+        client.start();
+        check(waitFor(client::isConnected), transport + "the client connected");
+
+        //set after both ends exchanged their tables
+        server.setAction("late", new Action(false) {
+            @Override
+            public void execute(ClientHandler hnd, Message msg) {
+                serverReceived.add(msg.getTag());
+            }
+        });
+        client.setAction("pushLate", newRecorder(clientReceived));
+
+        client.sendData("early", 0);
+        client.sendData("late", 0);
+        check(waitFor(() -> serverReceived.size() == 2), transport + "the server got " + serverReceived);
+        check(serverReceived.equals(Arrays.asList("early", "late")), transport + "in order, " + serverReceived);
+        check(waitFor(() -> clientReceived.size() == 2), transport + "the client got " + clientReceived);
+        check(clientReceived.equals(Arrays.asList("push", "pushLate")), transport + "in order, " + clientReceived);
+        check(client.isConnected(), transport + "the client is still connected");
+
+        client.stop();
+        server.stop();
+    }
+
+    private static com.chaitanyav.client.Action newRecorder(List<String> received) {
+        return new com.chaitanyav.client.Action() {
+            @Override
+            public void execute(Client c, Message msg) {
+                received.add(msg.getTag());
+            }
+        };
+    }
+
+    //polls the condition for up to 10 seconds
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}
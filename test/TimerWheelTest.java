@@ -0,0 +1,88 @@
+
+import com.chaitanyav.TimerWheel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that a TimerWheel fires its timeouts after their delay and not before, including
+ * timeouts that go around the wheel more than once, that cancelled timeouts don't fire and
+ * that a task that throws doesn't stop the wheel. Exits with 1 if a check fails.
+ * @author Chaitanya V
+ */
+public class TimerWheelTest {
+    private static final long TICK_MS = 10;
+    //the wheel takes 80 ms to go around
+    private static final int BUCKETS = 8;
+    //how late a timeout may fire on a busy machine
+    private static final long LATE_MS = 200;
+    private static int failures = 0;
+
+    public static void main(String[] args) throws InterruptedException {
+        TimerWheel wheel = new TimerWheel("TimerWheelTest", TICK_MS, BUCKETS, true);
+
+        for (long delay : new long[]{0, 5, 30, 75, 250, 700}) {
+            long start = System.nanoTime();
+            AtomicLong firedAfter = new AtomicLong(-1);
+            CountDownLatch fired = new CountDownLatch(1);
+            wheel.schedule(() -> {
+                firedAfter.set((System.nanoTime() - start) / 1000000);
+                fired.countDown();
+            }, delay);
+            boolean done = fired.await(delay + LATE_MS + 1000, TimeUnit.MILLISECONDS);
+            check(done, "timeout of " + delay + " ms fired");
+            //the wheel rounds deadlines down to its ticks
+            check(!done || firedAfter.get() >= delay - TICK_MS, "timeout of " + delay + " ms fired after " + firedAfter.get() + " ms, not before");
+            check(!done || firedAfter.get() <= delay + LATE_MS, "timeout of " + delay + " ms fired after " + firedAfter.get() + " ms, in time");
+        }
+
+        AtomicBoolean cancelledRan = new AtomicBoolean();
+        TimerWheel.Timeout cancelled = wheel.schedule(() -> cancelledRan.set(true), 50);
+        cancelled.cancel();
+        //a task that throws, followed by one that must still run
+        wheel.schedule(() -> {
+            throw new IllegalStateException("thrown on purpose by TimerWheelTest");
+        }, 20);
+        CountDownLatch after = new CountDownLatch(1);
+        wheel.schedule(after::countDown, 100);
+        check(after.await(100 + LATE_MS + 1000, TimeUnit.MILLISECONDS), "the wheel runs on after a task threw");
+        check(!cancelledRan.get(), "a cancelled timeout doesn't fire");
+
+        //many timeouts over several rounds, scheduled from several threads
+        int count = 10000;
+        AtomicInteger early = new AtomicInteger();
+        CountDownLatch all = new CountDownLatch(count);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < count / threads.length; i++) {
+                    long delay = i % 300;
+                    long start = System.nanoTime();
+                    wheel.schedule(() -> {
+                        if ((System.nanoTime() - start) / 1000000 < delay - TICK_MS) early.incrementAndGet();
+                        all.countDown();
+                    }, delay);
+                }
+            });
+            threads[t].start();
+        }
+        check(all.await(300 + LATE_MS + 5000, TimeUnit.MILLISECONDS), "all of " + count + " timeouts fired, " + all.getCount() + " left");
+        check(early.get() == 0, early.get() + " of " + count + " timeouts fired early");
+
+        wheel.stop();
+        if (failures > 0) {
+            System.out.println("FAILED - " + failures + " checks");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            failures++;
+            System.out.println("FAILED - " + what);
+        }
+    }
+}